@@ -0,0 +1,52 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Time for a whole group to connect with the automatic bootstrap, all processes in one JVM on
+ * localhost sockets.
+ *
+ * Every process is started on its own thread, in reverse ID order with a small stagger, so early
+ * connection attempts are refused and retried. Reports when the last process had its quorum.
+ * Process constructors write process_&lt;id&gt;.txt, run it from a scratch directory.
+ * Usage: java BootstrapBenchmark   (-Dbench.nodes=32, -Dbench.basePort=9000, -Dbench.staggerMillis=10,
+ * -Dcausal.bootstrap.quorum as for Process)
+ */
+public class BootstrapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("bench.nodes", 32);
+        int basePort = Integer.getInteger("bench.basePort", 9000);
+        long staggerMillis = Long.getLong("bench.staggerMillis", 10L);
+        System.setProperty("causal.bootstrap", "auto");
+        System.setProperty("causal.metrics.jmx", "false");
+
+        // Every process logs each connection, keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Process[] processes = new Process[nodes];
+        Thread[] starters = new Thread[nodes];
+        long start = System.nanoTime();
+        for (int id = nodes; id >= 1; id--) {
+            String[] ips = new String[nodes - 1];
+            int[] ports = new int[nodes - 1];
+            for (int peer = 1, i = 0; peer <= nodes; peer++) {
+                if (peer != id) {
+                    ips[i] = "localhost";
+                    ports[i++] = basePort + peer;
+                }
+            }
+            int processId = id;
+            starters[id - 1] = new Thread(() -> processes[processId - 1] = new Process(processId, basePort + processId, ips, ports));
+            starters[id - 1].start();
+            Thread.sleep(staggerMillis);
+        }
+        for (Thread starter : starters) {
+            starter.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        console.printf("%d processes connected in %.3f s, %d connections%n", nodes, seconds, nodes * (nodes - 1));
+        System.exit(0);
+    }
+}
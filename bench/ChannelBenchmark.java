@@ -0,0 +1,93 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery throughput of an in-memory cluster running several independent channels, by the
+ * number of protocol loops the channels are sharded over.
+ *
+ * Every process opens the same sim.channels channels and has one producer thread per channel
+ * broadcasting as fast as the blocking submission API lets it. The main group stays idle, so
+ * all work is channel work. Reported per shard count: messages delivered per second, summed over
+ * every channel of every process. With one shard all channels share a loop per process; more
+ * shards only help up to the number of cores the JVM gets.
+ * <pre>
+ * java -cp out ChannelBenchmark   (-Dsim.nodes, -Dsim.channels, -Dsim.seconds, -Dsim.window)
+ * </pre>
+ */
+public class ChannelBenchmark {
+
+    private static final int[] SHARDS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("sim.nodes", 4);
+        int channelCount = Integer.getInteger("sim.channels", 8);
+        int seconds = Integer.getInteger("sim.seconds", 3);
+        System.setProperty("causal.window", String.valueOf(Integer.getInteger("sim.window", 64)));
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s%n", "shards", "deliveries/s");
+        for (int shards : SHARDS) {
+            run(nodes, channelCount, seconds, shards);
+        }
+    }
+
+    private static void run(int nodes, int channelCount, int seconds, int shards) throws InterruptedException {
+        java.io.PrintStream console = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+
+        String[] names = new String[channelCount];
+        for (int c = 0; c < channelCount; c++) {
+            names[c] = "c" + c;
+        }
+        Process[] processes = new Process[nodes];
+        for (int i = 0; i < nodes; i++) {
+            processes[i] = new Process(i + 1, nodes, null);
+        }
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to) {
+                    processes[from].connect(new LoopbackLink(processes[to]::handleReceivedMessage,
+                            processes[to]::handleControl, null));
+                }
+            }
+        }
+        AtomicLong delivered = new AtomicLong();
+        for (Process process : processes) {
+            process.openChannels(names, shards);
+            for (String name : names) {
+                process.channel(name).setDeliveryListener(round -> delivered.addAndGet(round.size()));
+            }
+        }
+
+        Thread[] producers = new Thread[nodes * channelCount];
+        for (int i = 0; i < producers.length; i++) {
+            Process channel = processes[i / channelCount].channel(names[i % channelCount]);
+            producers[i] = new Thread(() -> {
+                try {
+                    for (int m = 1; ; m++) {
+                        channel.broadcastMessage("Message " + m + " from Process " + channel.getProcessID());
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            });
+            producers[i].setDaemon(true);
+            producers[i].start();
+        }
+
+        Thread.sleep(500); // Warm-up
+        long start = delivered.get();
+        TimeUnit.SECONDS.sleep(seconds);
+        long count = delivered.get() - start;
+
+        for (Thread producer : producers) {
+            producer.interrupt();
+        }
+        for (Process process : processes) {
+            process.shutdown();
+        }
+        Thread.sleep(100); // Loops finish the event they are in before they stop
+        System.setOut(console);
+        System.out.printf("%8d %16.0f%n", shards, (double) count / seconds);
+    }
+}
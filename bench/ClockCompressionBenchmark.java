@@ -0,0 +1,106 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Bytes per message and receive-side CPU for full versus diff-encoded vector clocks.
+ *
+ * A group of n processes where only a few members are active senders. All messages are
+ * delivered in a single global causal order, so every clock is the count of messages seen
+ * from each sender. One active sender's stream to a passive peer is encoded with the binary
+ * codec, and the peer rebuilds clocks and runs the deliverability check on it.
+ * Usage: java ClockCompressionBenchmark [activeSenders]
+ */
+public class ClockCompressionBenchmark {
+
+    private static final int[] GROUP_SIZES = {8, 32, 128, 512};
+    private static final int MESSAGES = 100_000;
+
+    public static void main(String[] args) throws IOException {
+        int active = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+        System.out.printf("%6s %8s %14s %14s %14s %14s%n",
+                "n", "active", "full B/msg", "diff B/msg", "full ns/recv", "diff ns/recv");
+        for (int groupSize : GROUP_SIZES) {
+            Stream full = stream(groupSize, active, false);
+            Stream diff = stream(groupSize, active, true);
+            receive(full, groupSize); // warmup
+            receive(diff, groupSize);
+            System.out.printf("%6d %8d %14.1f %14.1f %14.0f %14.0f%n", groupSize, active,
+                    full.bytesPerMessage(), diff.bytesPerMessage(),
+                    receive(full, groupSize), receive(diff, groupSize));
+        }
+    }
+
+    // Messages one passive peer receives from every active sender, in causal order
+    private static Stream stream(int groupSize, int active, boolean compress) throws IOException {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int[] clock = new int[groupSize];
+        ClockCompressor[] senders = new ClockCompressor[active];
+        for (int s = 0; s < active; s++) {
+            senders[s] = new ClockCompressor(groupSize, 1);
+        }
+
+        Process.Message[] received = new Process.Message[MESSAGES];
+        for (int m = 0; m < MESSAGES; m++) {
+            int sender = m % active;
+            clock[sender]++;
+            // Every active sender has delivered the message, so it touched that entry
+            for (ClockCompressor compressor : senders) {
+                compressor.touched(sender);
+            }
+            Process.Message message = new Process.Message(sender + 1, "Message " + m, clock.clone(), 0);
+            received[m] = compress ? senders[sender].compressFor(0, message) : message;
+            codec.writeFrame(out, received[m]);
+        }
+        out.flush();
+        return new Stream(received, bytes.size());
+    }
+
+    // Average nanoseconds per message for rebuilding the clock, checking and applying it
+    private static double receive(Stream stream, int groupSize) {
+        ClockCompressor compressor = new ClockCompressor(groupSize, 1);
+        int[] clock = new int[groupSize];
+        long start = System.nanoTime();
+        for (Process.Message wireMessage : stream.messages) {
+            Process.Message message = compressor.expand(wireMessage);
+            if (!deliverable(message, clock)) {
+                throw new IllegalStateException("Stream is not in causal order");
+            }
+            int[] messageClock = message.getVectorClock();
+            for (int i = 0; i < clock.length; i++) {
+                clock[i] = Math.max(clock[i], messageClock[i]);
+            }
+        }
+        return (double) (System.nanoTime() - start) / stream.messages.length;
+    }
+
+    // Same rule as Process.isDeliverable
+    private static boolean deliverable(Process.Message message, int[] clock) {
+        int sender = message.getSenderId() - 1;
+        int[] messageClock = message.getVectorClock();
+        for (int i = 0; i < clock.length; i++) {
+            if (i == sender ? messageClock[i] != clock[i] + 1 : messageClock[i] > clock[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Stream {
+        final Process.Message[] messages;
+        final long bytes;
+
+        Stream(Process.Message[] messages, long bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        double bytesPerMessage() {
+            return (double) bytes / messages.length;
+        }
+    }
+}
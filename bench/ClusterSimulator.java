@@ -0,0 +1,212 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs a whole group of processes in one JVM over loopback links, with no sockets, no stdin
+ * prompt and no trigger client.
+ *
+ * Every process broadcasts the same number of messages. The simulator reports delivery throughput
+ * and checks, on every process, that each delivery respects causal order and that all processes
+ * deliver the same sequence. With loss enabled rounds stall, since nothing retransmits yet; the
+ * run then ends after a quiet period and reports how far each process got.
+ *
+ * Settings: -Dsim.nodes (16), -Dsim.messages per node (200), -Dsim.minLatencyMicros (0),
+ * -Dsim.maxLatencyMicros (0), -Dsim.reorder (0.0), -Dsim.loss (0.0), -Dsim.seed (1),
+ * -Dsim.stallMillis (2000). Zero latency and no faults skip the network thread entirely.
+ * Process settings such as -Dcausal.window apply to every simulated process.
+ */
+public class ClusterSimulator {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("sim.nodes", 16);
+        int messages = Integer.getInteger("sim.messages", 200);
+        long minLatency = Long.getLong("sim.minLatencyMicros", 0L);
+        long maxLatency = Math.max(minLatency, Long.getLong("sim.maxLatencyMicros", 0L));
+        double reorder = Double.parseDouble(System.getProperty("sim.reorder", "0.0"));
+        double loss = Double.parseDouble(System.getProperty("sim.loss", "0.0"));
+        long seed = Long.getLong("sim.seed", 1L);
+        long stallMillis = Long.getLong("sim.stallMillis", 2000L);
+
+        SimulatedNetwork network = maxLatency == 0 && reorder == 0 && loss == 0
+                ? null : new SimulatedNetwork(minLatency, maxLatency, reorder, loss, seed);
+        Result result = simulate(nodes, messages, network, stallMillis);
+
+        System.out.printf("nodes=%d messages/node=%d latency=%d-%dus reorder=%.3f loss=%.3f seed=%d%n",
+                nodes, messages, minLatency, maxLatency, reorder, loss, seed);
+        System.out.printf("delivered %d of %d in %.3f s, %.0f deliveries/s%n",
+                result.delivered, result.expected, result.seconds, result.getDeliveriesPerSecond());
+        if (network != null) {
+            System.out.printf("network: transmitted=%d dropped=%d reordered=%d inFlight=%d%n",
+                    network.getTransmitted(), network.getDropped(), network.getReordered(), network.getInFlight());
+            network.shutdown();
+        }
+        System.out.printf("per process delivered min=%d max=%d, causal violations=%d, same sequence=%s%n",
+                result.minDelivered, result.maxDelivered, result.violations, result.agreed);
+        System.out.printf("egress per broadcast: sender %.1f, busiest node with relays %.1f%n",
+                result.getSenderEgressPerBroadcast(), result.getMaxEgressPerBroadcast());
+        System.out.print(result.metricsSummary);
+        System.exit(result.isCorrect() && result.isComplete() ? 0 : 1);
+    }
+
+    /**
+     * Builds the group, broadcasts and waits until everything is delivered or nothing has been
+     * delivered for stallMillis. The processes are shut down before this returns.
+     *
+     * @param network latency and faults for every link, or null for direct delivery
+     */
+    public static Result simulate(int nodes, int messages, SimulatedNetwork network, long stallMillis)
+            throws InterruptedException {
+        Process[] processes = new Process[nodes];
+        CausalChecker[] checkers = new CausalChecker[nodes];
+        for (int i = 0; i < nodes; i++) {
+            processes[i] = new Process(i + 1, nodes, null);
+            checkers[i] = new CausalChecker(nodes);
+            processes[i].setDeliveryListener(checkers[i]::deliveredRound);
+        }
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to) {
+                    processes[from].connect(new LoopbackLink(processes[to]::handleReceivedMessage,
+                            processes[to]::handleControl, network));
+                }
+            }
+        }
+
+        // Every node prints a line per round, keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Result result = new Result();
+        result.expected = (long) nodes * nodes * messages;
+        long start = System.nanoTime();
+        try {
+            // Round-robin over the nodes, a node whose submission queue is full is skipped for now
+            int[] submitted = new int[nodes];
+            int remaining = nodes * messages;
+            while (remaining > 0) {
+                boolean progress = false;
+                for (int i = 0; i < nodes; i++) {
+                    if (submitted[i] < messages
+                            && processes[i].tryBroadcast("Message " + (submitted[i] + 1) + " from Process " + (i + 1))) {
+                        submitted[i]++;
+                        remaining--;
+                        progress = true;
+                    }
+                }
+                if (!progress) {
+                    Thread.sleep(1);
+                }
+            }
+
+            long lastTotal = -1;
+            long lastProgress = System.nanoTime();
+            long end = start;
+            while (true) {
+                long total = 0;
+                for (CausalChecker checker : checkers) {
+                    total += checker.getCount();
+                }
+                long now = System.nanoTime();
+                if (total != lastTotal) {
+                    lastTotal = total;
+                    lastProgress = now;
+                    end = now;
+                }
+                if (total == result.expected || now - lastProgress > stallMillis * 1_000_000L) {
+                    break;
+                }
+                Thread.sleep(1);
+            }
+            result.delivered = lastTotal;
+            result.seconds = (end - start) / 1e9;
+        } finally {
+            System.setOut(console);
+        }
+
+        result.minDelivered = Long.MAX_VALUE;
+        for (CausalChecker checker : checkers) {
+            result.violations += checker.getViolations();
+            result.minDelivered = Math.min(result.minDelivered, checker.getCount());
+            result.maxDelivered = Math.max(result.maxDelivered, checker.getCount());
+            // Processes that delivered the same number of messages must have delivered the same ones
+            if (checker.getCount() == checkers[0].getCount() && checker.getDigest() != checkers[0].getDigest()) {
+                result.agreed = false;
+            }
+        }
+        result.metricsSummary = processes[0].getMetrics().getSummary();
+        result.roundTimeP99Micros = processes[0].getMetrics().getRoundTimeP99Micros();
+        result.deliveryLatencyP50Micros = processes[0].getMetrics().getDeliveryLatencyP50Micros();
+        result.deliveryLatencyP99Micros = processes[0].getMetrics().getDeliveryLatencyP99Micros();
+        for (Process process : processes) {
+            result.maxMessagesSent = Math.max(result.maxMessagesSent, process.getMessagesSent());
+            result.maxBroadcastWrites = Math.max(result.maxBroadcastWrites, process.getBroadcastWrites());
+        }
+        result.broadcastsPerNode = messages;
+
+        for (Process process : processes) {
+            process.shutdown();
+        }
+        return result;
+    }
+
+    public static class Result {
+        private long delivered;
+        private long expected;
+        private double seconds;
+        private long violations;
+        private boolean agreed = true;
+        private long minDelivered;
+        private long maxDelivered;
+        private String metricsSummary;
+        private long roundTimeP99Micros;
+        private long deliveryLatencyP50Micros;
+        private long deliveryLatencyP99Micros;
+        private long maxMessagesSent;
+        private long maxBroadcastWrites;
+        private long broadcastsPerNode;
+
+        public double getDeliveriesPerSecond() {
+            return delivered / seconds;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        // Round time of process 1, from its own send to the round completing
+        public long getRoundTimeP99Micros() {
+            return roundTimeP99Micros;
+        }
+
+        // Delivery latency at process 1, from the sender's send to delivery
+        public long getDeliveryLatencyP50Micros() {
+            return deliveryLatencyP50Micros;
+        }
+
+        public long getDeliveryLatencyP99Micros() {
+            return deliveryLatencyP99Micros;
+        }
+
+        // Messages a sender writes for one of its own broadcasts, N - 1 for full mesh, fanout for a tree
+        public double getSenderEgressPerBroadcast() {
+            return broadcastsPerNode == 0 ? 0 : (double) maxBroadcastWrites / broadcastsPerNode;
+        }
+
+        // Everything the busiest node wrote, relays included, per broadcast it made
+        public double getMaxEgressPerBroadcast() {
+            return broadcastsPerNode == 0 ? 0 : (double) maxMessagesSent / broadcastsPerNode;
+        }
+
+        public boolean isComplete() {
+            return delivered == expected;
+        }
+
+        public boolean isCorrect() {
+            return violations == 0 && agreed;
+        }
+
+        public String getMetricsSummary() {
+            return metricsSummary;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Reports bytes per message and encode/decode throughput for each codec.
+ * Usage: java CodecBenchmark [messagesPerRun]
+ */
+public class CodecBenchmark {
+
+    private static final int[] GROUP_SIZES = {4, 16, 64, 256};
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        MessageCodec[] codecs = {new BinaryMessageCodec(), new JavaSerializationCodec()};
+
+        System.out.printf("%-24s %6s %12s %16s %16s%n", "codec", "n", "bytes/msg", "encode msg/s", "decode msg/s");
+        for (int groupSize : GROUP_SIZES) {
+            Process.Message[] sample = sampleMessages(groupSize, 1024);
+            for (MessageCodec codec : codecs) {
+                run(codec, sample, messages / 10, false); // warmup
+                run(codec, sample, messages, true);
+            }
+        }
+    }
+
+    private static void run(MessageCodec codec, Process.Message[] sample, int messages, boolean report)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        long encodeStart = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            codec.writeFrame(out, sample[i % sample.length]);
+        }
+        out.flush();
+        long encodeNanos = System.nanoTime() - encodeStart;
+
+        byte[] encoded = bytes.toByteArray();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        long decodeStart = System.nanoTime();
+        int decoded = 0;
+        for (int i = 0; i < messages; i++) {
+            decoded += codec.readFrame(in, Process.Message::release);
+        }
+        long decodeNanos = System.nanoTime() - decodeStart;
+        if (!report) {
+            return;
+        }
+
+        System.out.printf("%-24s %6d %12.1f %16.0f %16.0f%s%n",
+                codec.getClass().getSimpleName(),
+                sample[0].getVectorClock().length,
+                (double) encoded.length / messages,
+                messages * 1e9 / encodeNanos,
+                messages * 1e9 / decodeNanos,
+                decoded == messages ? "" : " !");
+    }
+
+    private static Process.Message[] sampleMessages(int groupSize, int count) {
+        Process.Message[] messages = new Process.Message[count];
+        int[] clock = new int[groupSize];
+        for (int i = 0; i < count; i++) {
+            int sender = i % groupSize + 1;
+            clock[sender - 1]++;
+            messages[i] = new Process.Message(sender, "Message " + (i + 1) + " from Process " + sender,
+                    clock.clone(), i / groupSize);
+        }
+        return messages;
+    }
+}
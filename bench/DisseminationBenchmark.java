@@ -0,0 +1,47 @@
+/**
+ * Full-mesh fan-out against tree dissemination on the cluster simulator.
+ *
+ * For each group size, runs full mesh and trees of a few fanouts under the same link latency and
+ * reports the sender's egress per broadcast, the busiest node's egress with relays, delivery
+ * latency at process 1 and throughput. With every node broadcasting, relaying spreads the same
+ * N - 1 messages per broadcast over the group instead of putting them all on the sender.
+ * Usage: java DisseminationBenchmark   (-Dsim.messages, -Dsim.minLatencyMicros,
+ * -Dsim.maxLatencyMicros and -Dsim.seed as for ClusterSimulator, -Dbench.nodes=64,128)
+ */
+public class DisseminationBenchmark {
+
+    private static final int[] FANOUTS = {2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        String[] nodeCounts = System.getProperty("bench.nodes", "16,64,128").split(",");
+        int messages = Integer.getInteger("sim.messages", 50);
+        long minLatency = Long.getLong("sim.minLatencyMicros", 100L);
+        long maxLatency = Math.max(minLatency, Long.getLong("sim.maxLatencyMicros", 500L));
+        long seed = Long.getLong("sim.seed", 1L);
+
+        System.out.printf("%6s %-8s %13s %13s %14s %14s %16s %8s%n", "nodes", "mode", "sender egress", "node egress",
+                "latency p50 us", "latency p99 us", "deliveries/s", "correct");
+        for (String nodeCount : nodeCounts) {
+            int nodes = Integer.parseInt(nodeCount.trim());
+            run(nodes, messages, minLatency, maxLatency, seed, "mesh", 0);
+            for (int fanout : FANOUTS) {
+                run(nodes, messages, minLatency, maxLatency, seed, "tree", fanout);
+            }
+        }
+    }
+
+    private static void run(int nodes, int messages, long minLatency, long maxLatency, long seed,
+                            String mode, int fanout) throws InterruptedException {
+        System.setProperty("causal.dissemination", mode);
+        System.setProperty("causal.tree.fanout", String.valueOf(Math.max(1, fanout)));
+        SimulatedNetwork network = maxLatency == 0 ? null : new SimulatedNetwork(minLatency, maxLatency, 0.0, 0.0, seed);
+        ClusterSimulator.Result result = ClusterSimulator.simulate(nodes, messages, network, 5000);
+        if (network != null) {
+            network.shutdown();
+        }
+        System.out.printf("%6d %-8s %13.1f %13.1f %14d %14d %16.0f %8s%n", nodes, fanout == 0 ? mode : mode + "/" + fanout,
+                result.getSenderEgressPerBroadcast(), result.getMaxEgressPerBroadcast(), result.getDeliveryLatencyP50Micros(),
+                result.getDeliveryLatencyP99Micros(), result.getDeliveriesPerSecond(),
+                result.isCorrect() && result.isComplete());
+    }
+}
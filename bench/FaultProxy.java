@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy that breaks connections on purpose, to exercise the reliable layer
+ * ({@code -Dcausal.reliable=true}) between real processes.
+ *
+ * Each argument maps a local port to a target, for example {@code 8001=localhost:7001}. Point
+ * the processes at the proxy ports instead of each other. Every proxied connection is cut at
+ * random, both directions at once and mid-frame, and each forwarded chunk may be held back.
+ *
+ * Settings: -Dproxy.cutMillis, mean time between cuts of a connection, exponentially distributed
+ * (1000, 0 never cuts), -Dproxy.delayMillis, upper bound of the uniform delay per chunk (0),
+ * -Dproxy.seed (1).
+ * <pre>
+ * java -cp out -Dproxy.cutMillis=300 FaultProxy 8001=localhost:7001 8002=localhost:7002 8003=localhost:7003
+ * </pre>
+ */
+public class FaultProxy {
+
+    private final long cutMillis;
+    private final long delayMillis;
+    private final Random random;
+    private final ScheduledExecutorService cutter = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong cuts = new AtomicLong();
+
+    public FaultProxy(long cutMillis, long delayMillis, long seed) {
+        this.cutMillis = cutMillis;
+        this.delayMillis = delayMillis;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: FaultProxy <listenPort>=<host>:<port> ...");
+            return;
+        }
+        FaultProxy proxy = new FaultProxy(Long.getLong("proxy.cutMillis", 1000L),
+                Long.getLong("proxy.delayMillis", 0L), Long.getLong("proxy.seed", 1L));
+        for (String mapping : args) {
+            String[] parts = mapping.split("[=:]");
+            proxy.listen(Integer.parseInt(parts[0]), parts[1], Integer.parseInt(parts[2]));
+        }
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println("connections=" + proxy.connections.get() + " cuts=" + proxy.cuts.get());
+        }
+    }
+
+    public void listen(int listenPort, String targetHost, int targetPort) throws IOException {
+        ServerSocket server = new ServerSocket(listenPort);
+        System.out.println("Proxying " + listenPort + " -> " + targetHost + ":" + targetPort);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = server.accept();
+                    Socket target = new Socket(targetHost, targetPort);
+                    connections.incrementAndGet();
+                    pump(client, target);
+                    pump(target, client);
+                    scheduleCut(client, target);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "proxy-" + listenPort);
+        acceptor.start();
+    }
+
+    private void scheduleCut(Socket a, Socket b) {
+        if (cutMillis <= 0) {
+            return;
+        }
+        long after;
+        synchronized (random) {
+            after = (long) (-cutMillis * Math.log(1 - random.nextDouble()));
+        }
+        cutter.schedule(() -> {
+            if (!a.isClosed()) {
+                cuts.incrementAndGet();
+            }
+            close(a);
+            close(b);
+        }, after, TimeUnit.MILLISECONDS);
+    }
+
+    // Copies one direction until either side fails, then closes both
+    private void pump(Socket from, Socket to) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (delayMillis > 0) {
+                        long delay;
+                        synchronized (random) {
+                            delay = random.nextInt((int) delayMillis + 1);
+                        }
+                        Thread.sleep(delay);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Cut or closed by the other direction
+            } finally {
+                close(from);
+                close(to);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory and throughput of an in-memory cluster where one process is slow, with and without
+ * credit-based flow control.
+ *
+ * Every process has a producer thread that broadcasts as fast as the blocking submission API
+ * lets it. Process 1 spends sim.slowMicros on every delivered round, everyone else delivers at
+ * full speed. The round window is large, so only the credits (causal.credits, 0 for none) keep
+ * the fast processes from running ahead of the slow one. Reported per setting: deliveries per
+ * second at the slow process, and the largest protocol loop backlog and heap use sampled.
+ * <pre>
+ * java -cp out FlowControlBenchmark   (-Dsim.nodes, -Dsim.seconds, -Dsim.slowMicros, -Dsim.window)
+ * </pre>
+ */
+public class FlowControlBenchmark {
+
+    private static final int[] CREDITS = {0, 1024, 64, 8};
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("sim.nodes", 8);
+        int seconds = Integer.getInteger("sim.seconds", 3);
+        long slowMicros = Long.getLong("sim.slowMicros", 500L);
+        System.setProperty("causal.window", String.valueOf(Integer.getInteger("sim.window", 4096)));
+
+        System.out.printf("%8s %16s %14s %12s%n", "credits", "deliveries/s", "max backlog", "max heap MB");
+        for (int credits : CREDITS) {
+            System.setProperty("causal.credits", String.valueOf(credits));
+            run(nodes, seconds, slowMicros, credits);
+        }
+    }
+
+    private static void run(int nodes, int seconds, long slowMicros, int credits) throws InterruptedException {
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        java.io.PrintStream console = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+
+        Process[] processes = new Process[nodes];
+        AtomicLong slowDelivered = new AtomicLong();
+        for (int i = 0; i < nodes; i++) {
+            processes[i] = new Process(i + 1, nodes, null);
+        }
+        processes[0].setDeliveryListener(round -> {
+            slowDelivered.addAndGet(round.size());
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(slowMicros));
+        });
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to) {
+                    processes[from].connect(new LoopbackLink(processes[to]::handleReceivedMessage,
+                            processes[to]::handleControl, null));
+                }
+            }
+        }
+
+        Thread[] producers = new Thread[nodes];
+        for (int i = 0; i < nodes; i++) {
+            Process process = processes[i];
+            producers[i] = new Thread(() -> {
+                try {
+                    for (int m = 1; ; m++) {
+                        process.broadcastMessage("Message " + m + " from Process " + process.getProcessID());
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            });
+            producers[i].setDaemon(true);
+            producers[i].start();
+        }
+
+        int maxBacklog = 0;
+        long maxHeap = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            for (Process process : processes) {
+                maxBacklog = Math.max(maxBacklog, process.getMailboxBacklog());
+            }
+            maxHeap = Math.max(maxHeap, memory.getHeapMemoryUsage().getUsed());
+        }
+        long delivered = slowDelivered.get();
+
+        for (Thread producer : producers) {
+            producer.interrupt();
+        }
+        for (Process process : processes) {
+            process.shutdown();
+        }
+        Thread.sleep(100); // Loops finish the event they are in before they stop
+        System.setOut(console);
+        System.out.printf("%8s %16.0f %14d %12.1f%n", credits == 0 ? "off" : String.valueOf(credits),
+                (double) delivered / seconds, maxBacklog, maxHeap / 1048576.0);
+    }
+}
@@ -0,0 +1,97 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal JMH-style runner for the benchmarks in this module.
+ *
+ * Each benchmark runs warmup iterations, then measured iterations of a fixed duration on the
+ * calling thread. It reports throughput, average time per operation and bytes allocated per
+ * operation (from the per-thread allocation counter, the same source as JMH's gc profiler).
+ * Results are consumed into a sink so the JIT cannot drop the measured work.
+ */
+public class Harness {
+
+    /** One benchmark operation; return something derived from the work done. */
+    public interface Operation {
+        long run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Pattern filter;
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+    private final List<String> rows = new ArrayList<>();
+    private long sink;
+
+    public Harness(String filter, int warmupIterations, int measuredIterations, long iterationMillis) {
+        this.filter = Pattern.compile(filter);
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+    /**
+     * Reads {@code bench.filter} (regex on "name params", default all), {@code bench.warmup}
+     * (default 3), {@code bench.iterations} (default 5) and {@code bench.iterationMillis} (default 200).
+     */
+    public static Harness fromSystemProperties() {
+        return new Harness(System.getProperty("bench.filter", ".*"),
+                Integer.getInteger("bench.warmup", 3),
+                Integer.getInteger("bench.iterations", 5),
+                Long.getLong("bench.iterationMillis", 200L));
+    }
+
+    public void run(String name, String params, Operation operation) throws Exception {
+        String label = name + " " + params;
+        if (!filter.matcher(label).find()) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iterate(operation);
+        }
+
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long count = iterate(operation);
+            nanos += System.nanoTime() - start;
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            operations += count;
+        }
+
+        String row = String.format("%-34s %-26s %14.0f %12.1f %12.1f",
+                name, params, operations * 1e9 / nanos, (double) nanos / operations, (double) allocated / operations);
+        rows.add(row);
+        System.out.println(row);
+    }
+
+    public void printHeader() {
+        System.out.println(String.format("%-34s %-26s %14s %12s %12s", "benchmark", "params", "ops/s", "ns/op", "B/op"));
+    }
+
+    // Keeps results alive; printing it also keeps the sink from being optimized away
+    public long sink() {
+        return sink;
+    }
+
+    private long iterate(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + iterationNanos;
+        long count = 0;
+        do {
+            // Check the clock every 64 operations so timing does not dominate tiny operations
+            for (int i = 0; i < 64; i++) {
+                sink += operation.run();
+            }
+            count += 64;
+        } while (System.nanoTime() < deadline);
+        return count;
+    }
+}
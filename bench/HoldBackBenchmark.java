@@ -0,0 +1,126 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Compares the indexed hold-back queue with the linear buffer rescan it replaced.
+ *
+ * The workload is a causal chain where every message depends on all earlier ones, delivered
+ * to the receiver in reversed blocks of {@code depth} messages. The buffer therefore fills up to
+ * depth - 1 entries before the first message of the block arrives and releases the whole block.
+ * The rescan is run until a pass delivers nothing, the single pass it replaced strands messages.
+ * Usage: java HoldBackBenchmark [groupSize]
+ */
+public class HoldBackBenchmark {
+
+    private static final int[] DEPTHS = {500, 1000, 2000, 4000};
+
+    public static void main(String[] args) {
+        int groupSize = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+
+        System.out.printf("%6s %6s %18s %18s %10s%n", "n", "depth", "rescan ms/block", "indexed ms/block", "speedup");
+        for (int depth : DEPTHS) {
+            Process.Message[] arrivals = reversedChain(groupSize, depth);
+            for (int i = 0; i < 3; i++) { // warmup
+                runRescan(arrivals, groupSize);
+                runIndexed(arrivals, groupSize);
+            }
+            double rescan = timeMillis(() -> runRescan(arrivals, groupSize));
+            double indexed = timeMillis(() -> runIndexed(arrivals, groupSize));
+            System.out.printf("%6d %6d %18.2f %18.3f %9.0fx%n", groupSize, depth, rescan, indexed, rescan / indexed);
+        }
+    }
+
+    // Process 1 receives every message of the chain, none of them is its own
+    private static Process.Message[] reversedChain(int groupSize, int depth) {
+        Process.Message[] chain = new Process.Message[depth];
+        int[] clock = new int[groupSize];
+        for (int i = 0; i < depth; i++) {
+            int sender = 2 + i % (groupSize - 1);
+            clock[sender - 1]++;
+            chain[depth - 1 - i] = new Process.Message(sender, "m" + i, clock.clone(), 0);
+        }
+        return chain;
+    }
+
+    private static double timeMillis(Runnable run) {
+        long start = System.nanoTime();
+        run.run();
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void runIndexed(Process.Message[] arrivals, int groupSize) {
+        int[] clock = new int[groupSize];
+        HoldBackQueue queue = new HoldBackQueue(clock);
+        int delivered = 0;
+        for (Process.Message message : arrivals) {
+            if (deliverable(message, clock)) {
+                update(message, clock);
+                queue.advanced(message.getSenderId() - 1);
+                delivered++;
+                Process.Message next;
+                while ((next = queue.poll()) != null) {
+                    update(next, clock);
+                    queue.advanced(next.getSenderId() - 1);
+                    delivered++;
+                }
+            } else {
+                queue.add(message);
+            }
+        }
+        check(delivered, arrivals.length);
+    }
+
+    private static void runRescan(Process.Message[] arrivals, int groupSize) {
+        int[] clock = new int[groupSize];
+        ConcurrentLinkedQueue<Process.Message> buffer = new ConcurrentLinkedQueue<>();
+        int delivered = 0;
+        for (Process.Message message : arrivals) {
+            if (deliverable(message, clock)) {
+                update(message, clock);
+                delivered++;
+                boolean progress = true;
+                while (progress) {
+                    progress = false;
+                    Iterator<Process.Message> iterator = buffer.iterator();
+                    while (iterator.hasNext()) {
+                        Process.Message buffered = iterator.next();
+                        if (deliverable(buffered, clock)) {
+                            iterator.remove();
+                            update(buffered, clock);
+                            delivered++;
+                            progress = true;
+                        }
+                    }
+                }
+            } else {
+                buffer.add(message);
+            }
+        }
+        check(delivered, arrivals.length);
+    }
+
+    // Same rule as Process.isDeliverable
+    private static boolean deliverable(Process.Message message, int[] clock) {
+        int sender = message.getSenderId() - 1;
+        int[] messageClock = message.getVectorClock();
+        for (int i = 0; i < clock.length; i++) {
+            if (i == sender ? messageClock[i] != clock[i] + 1 : messageClock[i] > clock[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void update(Process.Message message, int[] clock) {
+        int[] messageClock = message.getVectorClock();
+        for (int i = 0; i < clock.length; i++) {
+            clock[i] = Math.max(clock[i], messageClock[i]);
+        }
+    }
+
+    private static void check(int delivered, int expected) {
+        if (delivered != expected) {
+            throw new IllegalStateException("Delivered " + delivered + " of " + expected + " messages");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks for the causal broadcast hot paths, run locally without any network.
+ *
+ * Covers Process.isDeliverable, UpdateClock, deliverMessagesInOrder, the full receive path
+ * through the hold-back queue (onReceivedMessage and checkAndDeliverBufferedMessages), the
+ * Wire codec round trip and frame decoding alone, over group sizes from 4 to 512, several
+ * reorder depths and rates. Run with -Dcausal.recycle=true and -Dcausal.log.rounds=false to see
+ * the steady-state mode, where receivePath and decodeFrame allocate next to nothing.
+ *
+ * Build and run from the project root:
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out HotPathBenchmark
+ * java -cp out -Dbench.filter=receivePath -Dbench.iterations=10 HotPathBenchmark
+ * </pre>
+ */
+public class HotPathBenchmark {
+
+    private static final int[] GROUP_SIZES = {4, 16, 64, 256, 512};
+    private static final int[] RECEIVE_GROUP_SIZES = {4, 16, 64};
+    private static final int[] REORDER_DEPTHS = {16, 256, 4096};
+    private static final double[] REORDER_RATES = {0.0, 0.1, 0.5};
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromSystemProperties();
+        DeliveryLog discard = new DeliveryLog("/dev/null", DeliveryLog.FsyncPolicy.NONE, 0);
+        harness.printHeader();
+
+        for (int n : GROUP_SIZES) {
+            Process process = new Process(1, n, null);
+            int[] clock = new int[n];
+            clock[1] = 1;
+            Process.Message next = new Process.Message(2, "m", clock, 0);
+            harness.run("isDeliverable", "n=" + n, () -> process.isDeliverable(next) ? 1 : 0);
+        }
+
+        for (int n : GROUP_SIZES) {
+            Process process = new Process(1, n, null);
+            Process.Message[] messages = new Process.Message[64];
+            for (int i = 0; i < messages.length; i++) {
+                int[] clock = new int[n];
+                Arrays.fill(clock, i);
+                messages[i] = new Process.Message(2, "m", clock, 0);
+            }
+            int[] index = {0};
+            harness.run("UpdateClock", "n=" + n, () -> {
+                process.UpdateClock(messages[index[0]++ & 63]);
+                return 0;
+            });
+        }
+
+        for (int n : GROUP_SIZES) {
+            Process process = new Process(1, n, discard);
+            Set<Process.Message> round = new HashSet<>(Arrays.asList(roundMessages(n, 0, true)));
+            harness.run("deliverMessagesInOrder", "n=" + n, () -> {
+                process.deliverMessagesInOrder(round);
+                return round.size();
+            });
+        }
+
+        for (int n : RECEIVE_GROUP_SIZES) {
+            for (int depth : REORDER_DEPTHS) {
+                for (double rate : REORDER_RATES) {
+                    if (rate == 0.0 && depth != REORDER_DEPTHS[0]) {
+                        continue; // Depth does not matter without reordering
+                    }
+                    ReceiveStream stream = new ReceiveStream(n, Math.max(64, 40_000 / n), depth, rate, discard);
+                    harness.run("receivePath", String.format("n=%d depth=%d rate=%.1f", n, depth, rate), stream::next);
+                }
+            }
+        }
+
+        for (int n : GROUP_SIZES) {
+            for (MessageCodec codec : new MessageCodec[]{new BinaryMessageCodec(), new JavaSerializationCodec()}) {
+                Process.Message message = roundMessages(n, 7, false)[0];
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+                DataOutputStream out = new DataOutputStream(bytes);
+                harness.run("codecRoundTrip", codec.getClass().getSimpleName() + " n=" + n, () -> {
+                    bytes.reset();
+                    codec.writeFrame(out, message);
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                    return codec.readFrame(in, Process.Message::release);
+                });
+            }
+        }
+
+        // What a receive thread does per frame: decode it, hand it on, the holder releases it
+        for (int n : GROUP_SIZES) {
+            MessageCodec codec = new BinaryMessageCodec();
+            ByteBuffer[] parts = codec.encode(binaryRoundMessages(n, 7, false)[0]);
+            ByteBuffer frame = ByteBuffer.allocate(parts[0].remaining() + parts[1].remaining());
+            frame.put(parts[0]).put(parts[1]).flip();
+            frame.position(4); // The transport reads the length prefix itself
+            harness.run("decodeFrame", "n=" + n, () -> {
+                int decoded = codec.readFrame(frame, Process.Message::release);
+                frame.position(4);
+                return decoded;
+            });
+        }
+
+        System.out.println("(sink " + harness.sink() + ")");
+        discard.close();
+    }
+
+    // Messages the other processes send in a round, after delivering every earlier round
+    private static Process.Message[] roundMessages(int n, int round, boolean includeOwn) {
+        List<Process.Message> messages = new ArrayList<>(n);
+        for (int sender = includeOwn ? 1 : 2; sender <= n; sender++) {
+            int[] clock = new int[n];
+            Arrays.fill(clock, round);
+            clock[sender - 1] = round + 1;
+            messages.add(new Process.Message(sender, "Message " + (round + 1) + " from Process " + sender, clock, round));
+        }
+        return messages.toArray(new Process.Message[0]);
+    }
+
+    // Same as roundMessages, with the payload as bytes the way messages arrive from the network
+    private static Process.Message[] binaryRoundMessages(int n, int round, boolean includeOwn) {
+        Process.Message[] messages = roundMessages(n, round, includeOwn);
+        for (int i = 0; i < messages.length; i++) {
+            Process.Message text = messages[i];
+            messages[i] = new Process.Message(text.getSenderId(), text.getPayload(), text.getVectorClock(), round, 0);
+        }
+        return messages;
+    }
+
+    /**
+     * Feeds process 1 the messages of the other n - 1 processes, round after round. With the given
+     * rate a message swaps places with one up to depth positions later, so messages arrive ahead
+     * of their dependencies and wait in the hold-back queue. Process 1 sends its own message for
+     * each round from its broadcast queue as rounds complete.
+     */
+    private static class ReceiveStream {
+        private final int n;
+        private final int rounds;
+        private final DeliveryLog log;
+        private final Process.Message[] arrivals;
+        private final ByteBuffer[] ownPayloads; // Built once, every reset sends the same bytes
+        private Process process;
+        private int position;
+
+        ReceiveStream(int n, int rounds, int depth, double rate, DeliveryLog log) {
+            this.n = n;
+            this.rounds = rounds;
+            this.log = log;
+            List<Process.Message> ordered = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                ordered.addAll(Arrays.asList(binaryRoundMessages(n, round, false)));
+            }
+            this.arrivals = ordered.toArray(new Process.Message[0]);
+            this.ownPayloads = new ByteBuffer[rounds];
+            for (int round = 0; round < rounds; round++) {
+                ownPayloads[round] = ByteBuffer.wrap(("Message " + (round + 1) + " from Process 1").getBytes(StandardCharsets.UTF_8));
+            }
+            Random random = new Random(42);
+            for (int i = 0; i < arrivals.length; i++) {
+                if (random.nextDouble() < rate) {
+                    int j = Math.min(arrivals.length - 1, i + 1 + random.nextInt(depth));
+                    Process.Message swap = arrivals[i];
+                    arrivals[i] = arrivals[j];
+                    arrivals[j] = swap;
+                }
+            }
+            reset();
+        }
+
+        long next() {
+            if (position == arrivals.length) {
+                reset();
+            }
+            process.onReceivedMessage(arrivals[position++]);
+            return position;
+        }
+
+        private void reset() {
+            process = new Process(1, n, log);
+            for (int round = 0; round < rounds; round++) {
+                process.sendOrQueue(ownPayloads[round]);
+            }
+            position = 0;
+        }
+    }
+}
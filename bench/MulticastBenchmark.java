@@ -0,0 +1,113 @@
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sender cost of one broadcast: a frame per peer over TCP wires against one multicast datagram.
+ *
+ * Each group size gets group - 1 wires to local sockets whose readers throw the bytes away, and a
+ * MulticastTransport on the loopback interface. Every operation broadcasts one message. Besides
+ * the harness columns, each row is followed by the sender thread's CPU time and the bytes it
+ * handed to the network per broadcast, payload of TCP segments and UDP datagrams without
+ * protocol headers. Multicast bytes include its heartbeats.
+ * <pre>
+ * java -cp out MulticastBenchmark   (-Dbench.groups=4,16,64 -Dbench.payloads=64,1024,8192)
+ * </pre>
+ */
+public class MulticastBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromSystemProperties();
+        MessageCodec codec = new BinaryMessageCodec();
+        harness.printHeader();
+
+        for (String groupSetting : System.getProperty("bench.groups", "4,16,64").split(",")) {
+            int group = Integer.parseInt(groupSetting.trim());
+            List<Wire> wires = new ArrayList<>();
+            List<ServerSocket> servers = new ArrayList<>();
+            for (int i = 1; i < group; i++) {
+                ServerSocket server = new ServerSocket(0);
+                servers.add(server);
+                Thread reader = new Thread(() -> drain(server), "drain-" + server.getLocalPort());
+                reader.setDaemon(true);
+                reader.start();
+                wires.add(new Wire("localhost", server.getLocalPort(), codec));
+            }
+            MulticastTransport multicast = new MulticastTransport(1, group, codec, Process.Message::release);
+            multicast.start();
+
+            for (String payloadSetting : System.getProperty("bench.payloads", "64,1024,8192").split(",")) {
+                int size = Integer.parseInt(payloadSetting.trim());
+                int[] clock = new int[group];
+                clock[0] = 1;
+                Process.Message message = new Process.Message(1, ByteBuffer.allocate(size), clock, 0, 0);
+                String params = "group=" + group + " size=" + size;
+
+                measure(harness, "tcpFanOut", params, () -> egress(wires, null), () -> {
+                    for (Wire wire : wires) {
+                        wire.sendMessage(message);
+                    }
+                    return wires.size();
+                });
+                measure(harness, "multicast", params, () -> egress(null, multicast), () -> {
+                    multicast.send(message);
+                    return 1;
+                });
+            }
+
+            multicast.close();
+            for (Wire wire : wires) {
+                wire.close();
+            }
+            for (ServerSocket server : servers) {
+                server.close();
+            }
+        }
+        System.out.println("sink " + harness.sink());
+    }
+
+    private static long egress(List<Wire> wires, MulticastTransport multicast) {
+        if (multicast != null) {
+            return multicast.getStats().getBytesSent();
+        }
+        long bytes = 0;
+        for (Wire wire : wires) {
+            bytes += wire.getStats().getBytesSent();
+        }
+        return bytes;
+    }
+
+    private static void measure(Harness harness, String name, String params, java.util.function.LongSupplier egress,
+                                Harness.Operation operation) throws Exception {
+        long[] operations = new long[1];
+        long cpuBefore = THREADS.getCurrentThreadCpuTime();
+        long bytesBefore = egress.getAsLong();
+        harness.run(name, params, () -> {
+            operations[0]++;
+            return operation.run();
+        });
+        if (operations[0] > 0) {
+            System.out.printf("    sender: %.2f us cpu, %.0f B egress per broadcast%n",
+                    (THREADS.getCurrentThreadCpuTime() - cpuBefore) / 1000.0 / operations[0],
+                    (double) (egress.getAsLong() - bytesBefore) / operations[0]);
+        }
+    }
+
+    private static void drain(ServerSocket server) {
+        byte[] buffer = new byte[64 * 1024];
+        try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // Discard
+            }
+        } catch (Exception e) {
+            // Closed at the end of the group
+        }
+    }
+}
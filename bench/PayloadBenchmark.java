@@ -0,0 +1,95 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cost of getting a received payload from the transport into the delivery log, per message,
+ * at payload sizes from 64 bytes to 64 KiB.
+ *
+ * Every operation decodes one prebuilt frame and copies its payload and a newline into a direct
+ * buffer standing in for the log's write buffer:
+ * <ul>
+ * <li>asText: through getContent() and a StringBuilder, the way rounds were logged as text</li>
+ * <li>stream: BinaryMessageCodec on a DataInputStream, as the socket transport reads</li>
+ * <li>buffer: BinaryMessageCodec on a direct buffer, as the NIO transport reads</li>
+ * </ul>
+ * Besides B/op from the harness, each row is followed by the collections and GC time it caused.
+ * <pre>
+ * java -cp out -Xmx256m PayloadBenchmark
+ * </pre>
+ */
+public class PayloadBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = {64, 4096, 65536};
+    private static final int GROUP_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = Harness.fromSystemProperties();
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        ByteBuffer log = ByteBuffer.allocateDirect(2 * PAYLOAD_SIZES[PAYLOAD_SIZES.length - 1]);
+        harness.printHeader();
+
+        for (int size : PAYLOAD_SIZES) {
+            byte[] text = new byte[size];
+            Arrays.fill(text, (byte) 'x');
+            int[] clock = new int[GROUP_SIZE];
+            clock[1] = 1;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 128);
+            codec.writeFrame(new DataOutputStream(bytes), new Process.Message(2, ByteBuffer.wrap(text), clock, 0, 0));
+            byte[] frame = bytes.toByteArray();
+            ByteArrayInputStream stream = new ByteArrayInputStream(frame);
+            DataInputStream in = new DataInputStream(stream);
+            ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+            direct.put(frame).flip();
+
+            measure(harness, "asText", size, () -> {
+                stream.reset();
+                return codec.readFrame(in, message -> {
+                    StringBuilder round = new StringBuilder();
+                    round.append(message.getContent()).append("\n");
+                    log.clear();
+                    log.put(round.toString().getBytes(StandardCharsets.UTF_8));
+                    message.release();
+                });
+            });
+            measure(harness, "stream", size, () -> {
+                stream.reset();
+                return codec.readFrame(in, message -> toLog(log, message));
+            });
+            measure(harness, "buffer", size, () -> {
+                direct.position(4);
+                return codec.readFrame(direct, message -> toLog(log, message));
+            });
+        }
+        System.out.println("pool: " + BufferPool.shared() + ", sink " + harness.sink());
+    }
+
+    // What the delivery log does with a binary record
+    private static void toLog(ByteBuffer log, Process.Message message) {
+        log.clear();
+        log.put(message.getPayload());
+        log.put((byte) '\n');
+        message.release();
+    }
+
+    private static void measure(Harness harness, String name, int size, Harness.Operation operation) throws Exception {
+        long collections = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections -= gc.getCollectionCount();
+            gcMillis -= gc.getCollectionTime();
+        }
+        harness.run(name, "size=" + size, operation);
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+        System.out.printf("    gc: %d collections, %d ms%n", collections, gcMillis);
+    }
+}
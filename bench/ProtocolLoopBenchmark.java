@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput and handoff latency of the single-writer protocol loop against the old
+ * synchronized(this) receive handler.
+ *
+ * Each producer thread stands in for one peer's receive thread and pushes that peer's messages
+ * in order. The handler is the causal receive step: deliverability check, clock update and the
+ * hold-back queue. Latency is measured from the producer handing a message over to the handler
+ * finishing it, so it includes lock waits for the monitor and queueing for the loop.
+ * Producers send open-loop at a fixed total rate and latency is taken from the intended send time.
+ * Usage: java ProtocolLoopBenchmark [producers] [messagesPerProducer] [totalRatePerSecond]
+ */
+public class ProtocolLoopBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        long rate = args.length > 2 ? Long.parseLong(args[2]) : 400_000L;
+
+        System.out.printf("%-10s %10s %14s %12s %12s %12s%n", "mode", "producers", "msg/s", "p50 us", "p99 us", "p99.9 us");
+        for (int i = 0; i < 2; i++) { // first pass is warmup
+            boolean report = i == 1;
+            run("monitor", producers, perProducer, rate, report);
+            run("loop", producers, perProducer, rate, report);
+        }
+    }
+
+    private static void run(String mode, int producers, int perProducer, long rate, boolean report)
+            throws InterruptedException {
+        int groupSize = producers + 1;
+        Process.Message[][] streams = new Process.Message[producers][perProducer];
+        for (int p = 0; p < producers; p++) {
+            int[] clock = new int[groupSize];
+            for (int m = 0; m < perProducer; m++) {
+                clock[p + 1]++;
+                streams[p][m] = new Process.Message(p + 2, "m", clock.clone(), 0);
+            }
+        }
+
+        long[] published = new long[producers * perProducer];
+        long[] handled = new long[producers * perProducer];
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        Receiver receiver = new Receiver(groupSize, perProducer, handled, done);
+
+        ProtocolLoop loop = new ProtocolLoop("bench-protocol", receiver::handle);
+        loop.start();
+
+        Thread[] threads = new Thread[producers];
+        long intervalNanos = 1_000_000_000L * producers / rate;
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            Process.Message[] stream = streams[p];
+            int base = p * perProducer;
+            long offset = start + p * intervalNanos / producers;
+            threads[p] = new Thread(() -> {
+                for (int m = 0; m < stream.length; m++) {
+                    long intended = offset + m * intervalNanos;
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    published[base + m] = intended;
+                    if ("loop".equals(mode)) {
+                        loop.publish(stream[m]);
+                    } else {
+                        synchronized (receiver) {
+                            receiver.handle(stream[m]);
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        loop.shutdown();
+
+        if (!report) {
+            return;
+        }
+        long[] latency = new long[published.length];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = handled[i] - published[i];
+        }
+        Arrays.sort(latency);
+        System.out.printf("%-10s %10d %14.0f %12.1f %12.1f %12.1f%n", mode, producers,
+                latency.length * 1e9 / elapsed,
+                percentile(latency, 0.50), percentile(latency, 0.99), percentile(latency, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, fraction * sorted.length)] / 1000.0;
+    }
+
+    // The causal receive step of Process, without the network and the round bookkeeping
+    private static class Receiver {
+        private final int[] clock;
+        private final HoldBackQueue holdBack;
+        private final int perProducer;
+        private final long[] handled;
+        private final CountDownLatch done;
+
+        Receiver(int groupSize, int perProducer, long[] handled, CountDownLatch done) {
+            this.clock = new int[groupSize];
+            this.holdBack = new HoldBackQueue(clock);
+            this.perProducer = perProducer;
+            this.handled = handled;
+            this.done = done;
+        }
+
+        void handle(Process.Message message) {
+            if (deliverable(message)) {
+                deliver(message);
+                Process.Message next;
+                while ((next = holdBack.poll()) != null) {
+                    deliver(next);
+                }
+            } else {
+                holdBack.add(message);
+            }
+        }
+
+        private boolean deliverable(Process.Message message) {
+            int sender = message.getSenderId() - 1;
+            int[] messageClock = message.getVectorClock();
+            for (int i = 0; i < clock.length; i++) {
+                if (i == sender ? messageClock[i] != clock[i] + 1 : messageClock[i] > clock[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void deliver(Process.Message message) {
+            int[] messageClock = message.getVectorClock();
+            for (int i = 0; i < clock.length; i++) {
+                clock[i] = Math.max(clock[i], messageClock[i]);
+            }
+            holdBack.advanced(message.getSenderId() - 1);
+            handled[(message.getSenderId() - 2) * perProducer + message.getSequence() - 1] = System.nanoTime();
+            done.countDown();
+        }
+    }
+}
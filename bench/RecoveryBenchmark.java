@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Recovery time against write-ahead log size, with and without snapshots.
+ *
+ * Drives a detached process through a number of rounds of received messages while it logs them,
+ * then opens the same log directory in a fresh process and times the rebuild. Without snapshots
+ * the whole log is replayed; with them only the records after the last snapshot are.
+ * Usage: java RecoveryBenchmark   (-Dbench.nodes, default 8)
+ */
+public class RecoveryBenchmark {
+
+    private static final int[] ROUNDS = {1_000, 10_000, 100_000};
+    private static final long[] SNAPSHOT_EVERY = {Long.MAX_VALUE, 25_000};
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("bench.nodes", 8);
+        System.out.printf("%10s %10s %14s %12s %12s %14s %8s%n", "rounds", "records", "snapshotEvery", "files MiB",
+                "write ms", "recovery ms", "same");
+        for (int rounds : ROUNDS) {
+            for (long snapshotEvery : SNAPSHOT_EVERY) {
+                run(nodes, rounds, snapshotEvery);
+            }
+        }
+    }
+
+    private static void run(int nodes, int rounds, long snapshotEvery) throws IOException {
+        Path directory = Files.createTempDirectory("wal-bench");
+        try {
+            Process original = new Process(1, nodes, null);
+            original.openWriteAheadLog(directory, snapshotEvery);
+            long writeStart = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                original.sendOrQueue("Message " + (round + 1) + " from Process 1");
+                for (int sender = 2; sender <= nodes; sender++) {
+                    int[] clock = new int[nodes];
+                    Arrays.fill(clock, round);
+                    clock[sender - 1] = round + 1;
+                    original.onReceivedMessage(new Process.Message(sender,
+                            "Message " + (round + 1) + " from Process " + sender, clock, round));
+                }
+            }
+            double writeMillis = (System.nanoTime() - writeStart) / 1e6;
+            original.shutdown();
+            long logBytes = sizeOf(directory);
+
+            Process recovered = new Process(1, nodes, null);
+            long recoveryStart = System.nanoTime();
+            long replayed = recovered.openWriteAheadLog(directory, snapshotEvery);
+            double recoveryMillis = (System.nanoTime() - recoveryStart) / 1e6;
+            boolean same = Arrays.equals(original.getVectorClock(), recovered.getVectorClock())
+                    && original.getCurrentRound() == recovered.getCurrentRound();
+            recovered.shutdown();
+
+            System.out.printf("%10d %10d %14s %12.1f %12.1f %14.1f %8s%n", rounds, (long) rounds * nodes,
+                    snapshotEvery == Long.MAX_VALUE ? "never" : String.valueOf(snapshotEvery),
+                    logBytes / 1048576.0, writeMillis, recoveryMillis, same + " (" + replayed + " replayed)");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Apparent size, segments are preallocated sparse files
+    private static long sizeOf(Path directory) throws IOException {
+        long total = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
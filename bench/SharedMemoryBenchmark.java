@@ -0,0 +1,173 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Round-trip latency between two endpoints in this JVM: shared memory rings, with spinning and
+ * parking readers, against loopback TCP with the same codec.
+ *
+ * One side sends a message and waits for the echo before sending the next, so every round trip
+ * pays the full hand-over cost twice. Reported per transport and payload size: round trips per
+ * second and round-trip percentiles in microseconds. Both rings live in a temporary directory
+ * under causal.shm.dir. Spinning readers need a core each besides the sender's, leave shm-spin
+ * out of bench.transports on smaller machines.
+ * <pre>
+ * java -cp out SharedMemoryBenchmark   (-Dbench.roundTrips=20000 -Dbench.payloads=64,1024,16384
+ *                                       -Dbench.transports=tcp,shm-spin,shm-park)
+ * </pre>
+ */
+public class SharedMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int roundTrips = Integer.getInteger("bench.roundTrips", 20_000);
+        Path directory = Files.createTempDirectory(Path.of(System.getProperty("causal.shm.dir", "/dev/shm")), "shm-bench");
+        System.setProperty("causal.shm.dir", directory.toString());
+
+        String transports = "," + System.getProperty("bench.transports", "tcp,shm-spin,shm-park") + ",";
+        System.out.printf("%-10s %8s %14s %10s %10s %10s%n", "transport", "payload", "round trips/s", "p50 us", "p99 us", "max us");
+        for (String payloadSetting : System.getProperty("bench.payloads", "64,1024,16384").split(",")) {
+            int size = Integer.parseInt(payloadSetting.trim());
+            if (transports.contains(",tcp,")) {
+                report("tcp", size, tcp(size, roundTrips));
+            }
+            for (String wait : new String[]{"spin", "park"}) {
+                if (transports.contains(",shm-" + wait + ",")) {
+                    System.setProperty("causal.shm.wait", wait);
+                    report("shm-" + wait, size, sharedMemory(size, roundTrips));
+                }
+            }
+        }
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static Process.Message message(int size) {
+        return new Process.Message(1, ByteBuffer.allocate(size), new int[]{1, 0}, 0, 0);
+    }
+
+    private static void report(String transport, int size, Result result) {
+        System.out.printf("%-10s %8d %14.0f %10.1f %10.1f %10.1f%n", transport, size,
+                result.roundTrips / result.seconds, result.latency.getValueAtPercentile(50) / 1000.0,
+                result.latency.getValueAtPercentile(99) / 1000.0, result.latency.getMax() / 1000.0);
+    }
+
+    private static Result sharedMemory(int size, int roundTrips) throws Exception {
+        MessageCodec codec = new BinaryMessageCodec();
+        AtomicLong echoed = new AtomicLong();
+        SharedMemoryTransport.Peer[] back = new SharedMemoryTransport.Peer[1];
+        // Endpoint 1 listens as port 1, endpoint 2 as port 2; endpoint 2 echoes on its reader thread
+        SharedMemoryTransport one = new SharedMemoryTransport(1, 1, 2, codec, message -> {
+            message.release();
+            echoed.incrementAndGet();
+        }, null);
+        SharedMemoryTransport two = new SharedMemoryTransport(2, 2, 2, codec, message -> {
+            back[0].send(message);
+            message.release();
+        }, null);
+        back[0] = two.connect(1, 1, null);
+        SharedMemoryTransport.Peer out = one.connect(2, 2, null);
+
+        Process.Message message = message(size);
+        Result result = measure(roundTrips, () -> {
+            long target = echoed.get() + 1;
+            out.send(message);
+            for (int spins = 0; echoed.get() < target; spins++) {
+                if (spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield(); // The readers may need this core
+                }
+            }
+        });
+        one.close();
+        two.close();
+        return result;
+    }
+
+    private static Result tcp(int size, int roundTrips) throws Exception {
+        MessageCodec codec = new BinaryMessageCodec();
+        try (ServerSocket server = new ServerSocket(0)) {
+            SynchronousQueue<Socket> accepted = new SynchronousQueue<>();
+            Thread echo = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    accepted.put(socket);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    while (true) {
+                        codec.readFrame(in, message -> {
+                            try {
+                                codec.writeFrame(out, message);
+                                out.flush();
+                            } catch (java.io.IOException e) {
+                                throw new java.io.UncheckedIOException(e);
+                            }
+                            message.release();
+                        });
+                    }
+                } catch (Exception e) {
+                    // Closed by the client
+                }
+            }, "tcp-echo");
+            echo.setDaemon(true);
+            echo.start();
+
+            try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+                socket.setTcpNoDelay(true);
+                accepted.poll(5, TimeUnit.SECONDS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Process.Message message = message(size);
+                return measure(roundTrips, () -> {
+                    codec.writeFrame(out, message);
+                    out.flush();
+                    codec.readFrame(in, Process.Message::release);
+                });
+            }
+        }
+    }
+
+    private interface RoundTrip {
+        void run() throws Exception;
+    }
+
+    // A tenth as warmup, then the timed round trips
+    private static Result measure(int roundTrips, RoundTrip roundTrip) throws Exception {
+        for (int i = 0; i < roundTrips / 10; i++) {
+            roundTrip.run();
+        }
+        Histogram latency = new Histogram();
+        long start = System.nanoTime();
+        for (int i = 0; i < roundTrips; i++) {
+            long before = System.nanoTime();
+            roundTrip.run();
+            latency.record(System.nanoTime() - before);
+        }
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.roundTrips = roundTrips;
+        result.latency = latency;
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50)); // Let the other side settle
+        return result;
+    }
+
+    private static final class Result {
+        double seconds;
+        long roundTrips;
+        Histogram latency;
+    }
+}
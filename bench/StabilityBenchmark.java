@@ -0,0 +1,66 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Feeds millions of round-based messages through one process's delivery bookkeeping and reports
+ * the retained message count and used heap, for the stability tracker and for the delivered-message
+ * set it replaced.
+ * Usage: java StabilityBenchmark [groupSize] [totalMessages]
+ */
+public class StabilityBenchmark {
+
+    public static void main(String[] args) {
+        int groupSize = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long totalMessages = args.length > 1 ? Long.parseLong(args[1]) : 4_000_000L;
+        int rounds = (int) (totalMessages / groupSize);
+        int reportEvery = Math.max(1, rounds / 8);
+
+        System.out.printf("%-10s %12s %12s %12s%n", "tracker", "messages", "retained", "heap MiB");
+        StabilityTracker tracker = new StabilityTracker(1, groupSize);
+        for (int round = 0; round < rounds; round++) {
+            Process.Message[] messages = round(groupSize, round);
+            for (int k = 1; k < groupSize; k++) {
+                tracker.observed(messages[k]);
+            }
+            for (Process.Message message : messages) {
+                tracker.delivered(message);
+            }
+            tracker.evictStable();
+            if ((round + 1) % reportEvery == 0) {
+                report("stability", (long) (round + 1) * groupSize, tracker.getRetainedCount());
+            }
+        }
+
+        // The old bookkeeping, stopped early so it does not take the JVM down with it
+        Set<Process.Message> delivered = new HashSet<>();
+        int setRounds = Math.min(rounds, 2 * reportEvery);
+        for (int round = 0; round < setRounds; round++) {
+            for (Process.Message message : round(groupSize, round)) {
+                delivered.add(message);
+            }
+            if ((round + 1) % (reportEvery / 2 + 1) == 0) {
+                report("hashset", (long) (round + 1) * groupSize, delivered.size());
+            }
+        }
+    }
+
+    // Every process sends once per round after delivering all messages of the previous round
+    private static Process.Message[] round(int groupSize, int round) {
+        Process.Message[] messages = new Process.Message[groupSize];
+        for (int k = 0; k < groupSize; k++) {
+            int[] clock = new int[groupSize];
+            Arrays.fill(clock, round);
+            clock[k] = round + 1;
+            messages[k] = new Process.Message(k + 1, "Message " + (round + 1) + " from Process " + (k + 1), clock, round);
+        }
+        return messages;
+    }
+
+    private static void report(String name, long messages, int retained) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("%-10s %12d %12d %12.1f%n", name, messages, retained, used / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Connection scaling and memory for platform versus virtual threads.
+ *
+ * Opens a number of loopback connections the way a process does: the server side accepts and
+ * starts a blocking frame reader per socket, the client side is a Wire with its own reader.
+ * Reports setup time, the time for one message per connection to arrive, OS thread count and
+ * resident memory. Without arguments every mode and size runs in a fresh JVM.
+ * Usage: java ThreadModeBenchmark [connections]   (mode from -Dcausal.threads)
+ */
+public class ThreadModeBenchmark {
+
+    private static final int[] CONNECTIONS = {250, 1000, 3000};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.printf("%-9s %12s %10s %10s %12s %10s%n", "threads", "connections", "setup ms", "send ms",
+                    "OS threads", "RSS MiB");
+            for (int connections : CONNECTIONS) {
+                for (String mode : new String[]{"platform", "virtual"}) {
+                    fork(mode, connections);
+                }
+            }
+            return;
+        }
+        run(Integer.parseInt(args[0]));
+    }
+
+    private static void fork(String mode, int connections) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        java.lang.Process child = new ProcessBuilder(java, "-Dcausal.threads=" + mode,
+                "-cp", System.getProperty("java.class.path"), "ThreadModeBenchmark", String.valueOf(connections))
+                .inheritIO().start();
+        child.waitFor();
+    }
+
+    private static void run(int connections) throws Exception {
+        ThreadMode mode = ThreadMode.current();
+        MessageCodec codec = new BinaryMessageCodec();
+        CountDownLatch received = new CountDownLatch(connections);
+
+        ServerSocket server = new ServerSocket(0, connections);
+        mode.newExecutor().submit(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    mode.newThread("reader", () -> readFrames(socket, codec, received)).start();
+                }
+            } catch (IOException e) {
+                // Server closed
+            }
+            return null;
+        });
+
+        long setupStart = System.nanoTime();
+        List<Wire> wires = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Wire wire = new Wire("127.0.0.1", server.getLocalPort(), codec);
+            wire.receiveMessage(message -> { });
+            wires.add(wire);
+        }
+        long setupNanos = System.nanoTime() - setupStart;
+
+        long sendStart = System.nanoTime();
+        Process.Message message = new Process.Message(1, "ping", new int[4], 0);
+        for (Wire wire : wires) {
+            wire.sendMessage(message);
+        }
+        received.await();
+        long sendNanos = System.nanoTime() - sendStart;
+
+        System.out.printf("%-9s %12d %10.0f %10.1f %12d %10.1f%n", mode.name().toLowerCase(), connections,
+                setupNanos / 1e6, sendNanos / 1e6, ManagementFactory.getThreadMXBean().getThreadCount(), residentMiB());
+        System.exit(0);
+    }
+
+    private static void readFrames(Socket socket, MessageCodec codec, CountDownLatch received) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                codec.readFrame(in, m -> {
+                    m.release();
+                    received.countDown();
+                });
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
+    }
+
+    private static double residentMiB() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", "")) / 1024.0;
+            }
+        }
+        return Double.NaN;
+    }
+}
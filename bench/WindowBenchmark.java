@@ -0,0 +1,35 @@
+/**
+ * Delivery throughput against the in-flight round window, under injected link latency.
+ *
+ * Runs the cluster simulator once per window size and latency range. With a window of 1 every
+ * round costs a full slowest-peer round trip; larger windows overlap the rounds.
+ * Usage: java WindowBenchmark   (-Dsim.nodes, -Dsim.messages and -Dsim.seed as for ClusterSimulator)
+ */
+public class WindowBenchmark {
+
+    private static final int[] WINDOWS = {1, 2, 4, 8, 16};
+    private static final long[][] LATENCIES_MICROS = {{0, 0}, {200, 1000}, {1000, 5000}};
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.getInteger("sim.nodes", 16);
+        int messages = Integer.getInteger("sim.messages", 200);
+        long seed = Long.getLong("sim.seed", 1L);
+
+        System.out.printf("%-14s %7s %16s %10s %14s %8s%n", "latency us", "window", "deliveries/s", "seconds",
+                "round p99 us", "correct");
+        for (long[] latency : LATENCIES_MICROS) {
+            for (int window : WINDOWS) {
+                System.setProperty("causal.window", String.valueOf(window));
+                SimulatedNetwork network = latency[1] == 0
+                        ? null : new SimulatedNetwork(latency[0], latency[1], 0.0, 0.0, seed);
+                ClusterSimulator.Result result = ClusterSimulator.simulate(nodes, messages, network, 5000);
+                if (network != null) {
+                    network.shutdown();
+                }
+                System.out.printf("%-14s %7d %16.0f %10.3f %14d %8s%n", latency[0] + "-" + latency[1], window,
+                        result.getDeliveriesPerSecond(), result.getSeconds(), result.getRoundTimeP99Micros(),
+                        result.isCorrect() && result.isComplete());
+            }
+        }
+    }
+}
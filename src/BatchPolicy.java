@@ -0,0 +1,43 @@
+/**
+ * Tunables for coalescing several messages to the same peer into one frame.
+ * A pending batch is flushed once it holds {@code maxMessages} messages or once its
+ * oldest message has waited {@code lingerMicros}, whichever comes first.
+ */
+public class BatchPolicy {
+    private final int maxMessages;
+    private final long lingerMicros;
+
+    public BatchPolicy(int maxMessages, long lingerMicros) {
+        if (maxMessages < 1 || lingerMicros < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and linger must not be negative.");
+        }
+        this.maxMessages = maxMessages;
+        this.lingerMicros = lingerMicros;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getLingerMicros() {
+        return lingerMicros;
+    }
+
+    /**
+     * Reads {@code causal.batch} (on/off), {@code causal.batch.maxMessages} and
+     * {@code causal.batch.lingerMicros}. Returns null when batching is disabled.
+     */
+    public static BatchPolicy fromSystemProperties() {
+        if (!Boolean.getBoolean("causal.batch")) {
+            return null;
+        }
+        return new BatchPolicy(
+                Integer.getInteger("causal.batch.maxMessages", 64),
+                Long.getLong("causal.batch.lingerMicros", 200L));
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPolicy{maxMessages=" + maxMessages + ", lingerMicros=" + lingerMicros + "}";
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Compact length-prefixed binary format for messages.
+ *
+ * <pre>
+ * int  bodyLength
+ * byte kind            (KIND_MESSAGE or KIND_BATCH, plus FLAG_CHANNELS)
+ * int  count           (KIND_BATCH only)
+ * record[count]        (exactly one for KIND_MESSAGE)
+ *
+ * record:
+ * int  channel                  (FLAG_CHANNELS only, otherwise channel 0)
+ * int  senderId
+ * int  round
+ * long sentAtMicros             (sender's clock at send, 0 if unknown)
+ * int  clockLength
+ * int  clock[clockLength]       (clockLength &gt;= 0, full clock)
+ *   or (int index, int value)[~clockLength]   (clockLength &lt; 0, compressed clock)
+ * int  payloadLength
+ * byte payload[payloadLength]   (opaque bytes, UTF-8 for text messages)
+ * </pre>
+ *
+ * Decoded payloads live in direct buffers from {@link BufferPool#shared()}; the frame itself is
+ * parsed in place, from the caller's buffer or a per-thread scratch array, so a frame costs one
+ * copy of each payload and no heap allocation proportional to its size. Payloads are written
+ * straight from the message's buffer.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    static final byte KIND_MESSAGE = 1;
+    static final byte KIND_BATCH = 2;
+    static final byte FLAG_CHANNELS = 0x10; // Set when some record is not on the default channel
+
+    // senderId + round + sentAtMicros + clockLength + payloadLength
+    private static final int FIXED_RECORD_LENGTH = 4 + 4 + 8 + 4 + 4;
+
+    // Larger frames get a one-off buffer so a rare huge frame does not pin memory per thread
+    private static final int MAX_RETAINED_SCRATCH = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+    private static final ThreadLocal<byte[]> WRITE_SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    @Override
+    public void writeFrame(DataOutputStream out, Process.Message message) throws IOException {
+        ByteBuffer payload = message.getPayload();
+        boolean channels = message.getChannel() != 0;
+        out.writeInt(1 + recordLength(message, payload, channels));
+        out.writeByte(channels ? KIND_MESSAGE | FLAG_CHANNELS : KIND_MESSAGE);
+        writeRecord(out, message, payload, channels);
+    }
+
+    @Override
+    public void writeBatch(DataOutputStream out, List<Process.Message> messages) throws IOException {
+        ByteBuffer[] payloads = new ByteBuffer[messages.size()];
+        boolean channels = false;
+        for (Process.Message message : messages) {
+            channels |= message.getChannel() != 0;
+        }
+        int length = 1 + 4;
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = messages.get(i).getPayload();
+            length += recordLength(messages.get(i), payloads[i], channels);
+        }
+
+        out.writeInt(length);
+        out.writeByte(channels ? KIND_BATCH | FLAG_CHANNELS : KIND_BATCH);
+        out.writeInt(payloads.length);
+        for (int i = 0; i < payloads.length; i++) {
+            writeRecord(out, messages.get(i), payloads[i], channels);
+        }
+    }
+
+    // The header in a small heap buffer, followed by a view of the payload itself
+    @Override
+    public ByteBuffer[] encode(Process.Message message) {
+        ByteBuffer payload = message.getPayload();
+        boolean channels = message.getChannel() != 0;
+        int recordLength = recordLength(message, payload, channels);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + recordLength - payload.remaining());
+        header.putInt(1 + recordLength);
+        if (channels) {
+            header.put((byte) (KIND_MESSAGE | FLAG_CHANNELS));
+            header.putInt(message.getChannel());
+        } else {
+            header.put(KIND_MESSAGE);
+        }
+        int[] clock = message.getVectorClock();
+        header.putInt(message.getSenderId());
+        header.putInt(message.getRound());
+        header.putLong(message.getSentAtMicros());
+        if (message.isCompressed()) {
+            int[] indices = message.getClockIndices();
+            header.putInt(~indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                header.putInt(indices[i]);
+                header.putInt(clock[i]);
+            }
+        } else {
+            header.putInt(clock.length);
+            for (int value : clock) {
+                header.putInt(value);
+            }
+        }
+        header.putInt(payload.remaining());
+        header.flip();
+        return new ByteBuffer[]{header, payload};
+    }
+
+    @Override
+    public int readFrame(DataInputStream in, Consumer<Process.Message> sink, ControlHandler control) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return MessageCodec.readControl(in, length, control);
+        }
+        MessageCodec.checkFrameLength(length);
+        ByteBuffer body = READ_SCRATCH.get();
+        if (body.capacity() < length) {
+            body = ByteBuffer.allocate(Math.max(length, 2 * body.capacity()));
+            if (body.capacity() <= MAX_RETAINED_SCRATCH) {
+                READ_SCRATCH.set(body);
+            }
+        }
+        in.readFully(body.array(), 0, length);
+        body.clear().limit(length);
+        return readFrame(body, sink);
+    }
+
+    @Override
+    public int readFrame(ByteBuffer body, Consumer<Process.Message> sink) throws IOException {
+        if (!body.hasRemaining()) {
+            throw new StreamCorruptedException("Empty frame");
+        }
+
+        byte kind = body.get();
+        boolean channels = (kind & FLAG_CHANNELS) != 0;
+        kind &= ~FLAG_CHANNELS;
+        int count;
+        if (kind == KIND_MESSAGE) {
+            count = 1;
+        } else if (kind == KIND_BATCH) {
+            if (body.remaining() < 4) {
+                throw new StreamCorruptedException("Batch too short");
+            }
+            count = body.getInt();
+            if (count < 0 || (long) count * FIXED_RECORD_LENGTH > body.remaining()) {
+                throw new StreamCorruptedException("Invalid batch size: " + count);
+            }
+        } else {
+            throw new StreamCorruptedException("Unknown frame kind: " + kind);
+        }
+
+        if (count == 1) {
+            // Most frames carry a single message, no array to stage it in
+            Process.Message message = readRecord(body, channels);
+            if (body.hasRemaining()) {
+                message.release();
+                throw new StreamCorruptedException("Frame length does not match its records");
+            }
+            sink.accept(message);
+            return 1;
+        }
+
+        // Decode the whole frame first so a corrupt tail does not deliver half a batch
+        Process.Message[] messages = new Process.Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = readRecord(body, channels);
+        }
+        if (body.hasRemaining()) {
+            throw new StreamCorruptedException("Frame length does not match its records");
+        }
+        for (Process.Message message : messages) {
+            sink.accept(message);
+        }
+        return count;
+    }
+
+    // Decodes one record, copying its payload into a pooled buffer
+    private static Process.Message readRecord(ByteBuffer in, boolean channels) throws IOException {
+        int channel = 0;
+        if (channels) {
+            if (in.remaining() < 4) {
+                throw new StreamCorruptedException("Record too short: " + in.remaining());
+            }
+            channel = in.getInt();
+        }
+        int remaining = in.remaining();
+        if (remaining < FIXED_RECORD_LENGTH) {
+            throw new StreamCorruptedException("Record too short: " + remaining);
+        }
+        int senderId = in.getInt();
+        int round = in.getInt();
+        long sentAtMicros = in.getLong();
+
+        int clockField = in.getInt();
+        boolean compressed = clockField < 0;
+        int clockLength = compressed ? ~clockField : clockField;
+        long clockInts = compressed ? 2L * clockLength : clockLength;
+        if (FIXED_RECORD_LENGTH + 4L * clockInts > remaining) {
+            throw new StreamCorruptedException("Invalid clock length: " + clockField);
+        }
+        // A full clock is read straight into a recycled message, see MessagePool
+        Process.Message message = compressed ? null : MessagePool.shared().acquire(clockLength);
+        int[] indices = compressed ? new int[clockLength] : null;
+        int[] clock = compressed ? new int[clockLength] : message.getVectorClock();
+        for (int i = 0; i < clockLength; i++) {
+            if (compressed) {
+                indices[i] = in.getInt();
+            }
+            clock[i] = in.getInt();
+        }
+
+        int payloadLength = in.getInt();
+        if (payloadLength < 0 || payloadLength > in.remaining()) {
+            throw new StreamCorruptedException("Invalid payload length: " + payloadLength);
+        }
+        ByteBuffer payload = BufferPool.shared().acquire(payloadLength);
+        int end = in.position() + payloadLength;
+        int limit = in.limit();
+        in.limit(end);
+        payload.put(in).flip();
+        in.limit(limit);
+        if (compressed) {
+            return Process.Message.pooled(senderId, channel, payload, indices, clock, round, sentAtMicros);
+        }
+        message.reuse(senderId, channel, payload, round, sentAtMicros);
+        return message;
+    }
+
+    private static void writeRecord(DataOutputStream out, Process.Message message, ByteBuffer payload,
+                                    boolean channels) throws IOException {
+        int[] clock = message.getVectorClock();
+        if (channels) {
+            out.writeInt(message.getChannel());
+        }
+        out.writeInt(message.getSenderId());
+        out.writeInt(message.getRound());
+        out.writeLong(message.getSentAtMicros());
+        if (message.isCompressed()) {
+            int[] indices = message.getClockIndices();
+            out.writeInt(~indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                out.writeInt(indices[i]);
+                out.writeInt(clock[i]);
+            }
+        } else {
+            out.writeInt(clock.length);
+            for (int value : clock) {
+                out.writeInt(value);
+            }
+        }
+        out.writeInt(payload.remaining());
+        writePayload(out, payload);
+    }
+
+    // Heap payloads are written from their array, direct ones in chunks through a scratch array
+    private static void writePayload(DataOutputStream out, ByteBuffer payload) throws IOException {
+        if (payload.hasArray()) {
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            return;
+        }
+        byte[] scratch = WRITE_SCRATCH.get();
+        ByteBuffer view = payload.duplicate();
+        while (view.hasRemaining()) {
+            int chunk = Math.min(scratch.length, view.remaining());
+            view.get(scratch, 0, chunk);
+            out.write(scratch, 0, chunk);
+        }
+    }
+
+    private static int recordLength(Process.Message message, ByteBuffer payload, boolean channels) {
+        int clockInts = message.getVectorClock().length * (message.isCompressed() ? 2 : 1);
+        return (channels ? 4 : 0) + FIXED_RECORD_LENGTH + 4 * clockInts + payload.remaining();
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non-interactive cluster start: connects to every peer at once instead of one after the other
+ * behind a prompt.
+ *
+ * Each peer gets its own thread that keeps trying until it connects or the deadline passes,
+ * sleeping between attempts with exponential backoff (50 ms doubling up to 2 s, randomized so a
+ * large group does not retry in lockstep). Peers that are not listening yet are simply retried,
+ * so processes can be started in any order. The caller continues once a quorum of peers is
+ * connected; the rest keep retrying in the background.
+ *
+ * {@code -Dcausal.bootstrap=auto} enables it, the default {@code interactive} keeps the prompt.
+ * {@code -Dcausal.bootstrap.quorum} is the number of peers to wait for (default all of them) and
+ * {@code -Dcausal.bootstrap.timeoutSeconds} bounds the whole attempt (default 120). A quorum below
+ * the group size lets a process start sending before everyone is there; peers that join later
+ * miss what was sent before they connected. Not reaching the quorum by the deadline, or a peer
+ * that is not a valid member of the group, fails the whole bootstrap.
+ */
+public class Bootstrap {
+
+    /**
+     * Connects to one peer, throwing an IOException when this attempt failed and should be
+     * retried. Any other exception is final and aborts the bootstrap.
+     */
+    public interface Connector {
+        void connect(int peerIndex) throws IOException;
+    }
+
+    private static final long MIN_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+
+    private final int quorum; // Peers to wait for, 0 or negative for all
+    private final long timeoutMillis;
+
+    public Bootstrap(int quorum, long timeoutMillis) {
+        this.quorum = quorum;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static boolean isAutomatic() {
+        return "auto".equalsIgnoreCase(System.getProperty("causal.bootstrap", "interactive"));
+    }
+
+    public static Bootstrap fromSystemProperties() {
+        return new Bootstrap(Integer.getInteger("causal.bootstrap.quorum", 0),
+                Long.getLong("causal.bootstrap.timeoutSeconds", 120L) * 1000);
+    }
+
+    /**
+     * Starts connecting to every peer in parallel and waits until the quorum is connected or the
+     * deadline passes.
+     *
+     * @param peers     number of peers, connector indices run from 0 to peers - 1
+     * @param connector makes one attempt for one peer
+     * @return the number of peers connected when this returns, at least the quorum
+     * @throws IllegalStateException if a connector failed for good, or the quorum was not
+     *                               connected by the deadline
+     */
+    public int connectAll(int peers, Connector connector) throws InterruptedException {
+        int needed = quorum <= 0 ? peers : Math.min(quorum, peers);
+        CountDownLatch ready = new CountDownLatch(needed);
+        AtomicInteger connected = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        for (int i = 0; i < peers; i++) {
+            int peerIndex = i;
+            ThreadMode.current().newThread("bootstrap-" + i, () -> {
+                try {
+                    if (connectWithBackoff(peerIndex, connector, deadline)) {
+                        connected.incrementAndGet();
+                        ready.countDown();
+                    }
+                } catch (RuntimeException e) {
+                    // Retrying cannot help, wake the caller instead of letting it sit out the deadline
+                    failure.compareAndSet(null, e);
+                    while (ready.getCount() > 0) {
+                        ready.countDown();
+                    }
+                }
+            }).start();
+        }
+        ready.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        if (failure.get() != null) {
+            throw new IllegalStateException("Bootstrap failed: " + failure.get().getMessage(), failure.get());
+        }
+        int count = connected.get();
+        if (count < needed) {
+            throw new IllegalStateException("Connected to " + count + " of " + peers + " peers within "
+                    + timeoutMillis / 1000 + " s, the quorum is " + needed);
+        }
+        return count;
+    }
+
+    private boolean connectWithBackoff(int peerIndex, Connector connector, long deadline) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        IOException lastFailure = null;
+        while (System.nanoTime() < deadline) {
+            try {
+                connector.connect(peerIndex);
+                return true;
+            } catch (IOException e) {
+                lastFailure = e;
+            }
+            long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            sleep = Math.min(sleep, TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime())));
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+        System.out.println("Giving up on peer " + peerIndex + ": " + (lastFailure != null ? lastFailure.getMessage() : "timed out"));
+        return false;
+    }
+}
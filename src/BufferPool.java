@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles direct buffers for message payloads and transport reads, so large payloads neither
+ * land on the heap nor cost a fresh off-heap allocation per message.
+ *
+ * Buffers come in power-of-two size classes from 64 bytes up to the largest frame. Each class
+ * keeps at most a fixed number of idle buffers; more releases than that are left to the GC,
+ * which frees direct memory through the buffer's cleaner. Requests above the largest class are
+ * allocated directly and never pooled. Idle buffers sit in a fixed array per class, so handing
+ * one back allocates nothing. Thread-safe.
+ *
+ * {@code -Dcausal.pool.buffersPerClass} sets how many idle buffers each class keeps (default 256).
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 6; // 64 bytes
+    private static final int MAX_CLASS_SHIFT = 24; // 16 MiB, the largest frame
+
+    private static final BufferPool SHARED = new BufferPool(Integer.getInteger("causal.pool.buffersPerClass", 256));
+
+    private final ByteBuffer[][] idle; // Per class, the first idleCounts[class] entries are idle
+    private final int[] idleCounts; // Guarded by the class's idle array
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public BufferPool(int buffersPerClass) {
+        int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        this.idle = new ByteBuffer[classes][Math.max(0, buffersPerClass)];
+        this.idleCounts = new int[classes];
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // A cleared direct buffer with position 0 and limit exactly size, its capacity may be larger
+    public ByteBuffer acquire(int size) {
+        acquired.incrementAndGet();
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = null;
+        ByteBuffer[] stack = idle[sizeClass];
+        synchronized (stack) {
+            if (idleCounts[sizeClass] > 0) {
+                buffer = stack[--idleCounts[sizeClass]];
+                stack[idleCounts[sizeClass]] = null;
+            }
+        }
+        if (buffer == null) {
+            int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(capacity);
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    // Hand a buffer from acquire back, nothing may use it afterwards
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1) {
+            return; // Not one of ours
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        ByteBuffer[] stack = idle[sizeClass];
+        synchronized (stack) {
+            if (idleCounts[sizeClass] < stack.length) {
+                stack[idleCounts[sizeClass]++] = buffer;
+            }
+        }
+    }
+
+    // Index of the smallest class holding size bytes, -1 above the largest class
+    private static int sizeClass(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    // Acquisitions the pool could not serve from an idle buffer
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("acquired=%d allocated=%d (%d KiB)", acquired.get(), allocated.get(),
+                allocatedBytes.get() >> 10);
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.List;
+
+/**
+ * Checks the deliveries of one process against causal order, for the load driver and the
+ * simulator alike.
+ *
+ * A message from sender s is in order when it is the next one from s, and its vector clock
+ * counts no more messages from any other sender than this process has already delivered. The
+ * digest folds in sender and sequence of every delivery, so two processes that delivered the same
+ * number of messages but have different digests delivered them in a different order.
+ *
+ * Written by the owning process's protocol loop only, the counters may be read from any thread.
+ */
+public class CausalChecker {
+
+    private final int[] delivered; // Per sender, messages delivered so far
+    private volatile long count; // Single writer, read by reporting threads
+    private volatile long violations;
+    private volatile long digest = 17;
+
+    public CausalChecker(int totalProcesses) {
+        this.delivered = new int[totalProcesses];
+    }
+
+    // Delivery listener form, records every message of the round in order
+    public void deliveredRound(List<Process.Message> round) {
+        for (Process.Message message : round) {
+            delivered(message);
+        }
+    }
+
+    // Records one delivery, false when it broke causal order
+    public boolean delivered(Process.Message message) {
+        int sender = message.getSenderId() - 1;
+        int[] clock = message.getVectorClock();
+        boolean causal = clock[sender] == delivered[sender] + 1;
+        for (int j = 0; j < clock.length && causal; j++) {
+            causal = j == sender || clock[j] <= delivered[j];
+        }
+        if (!causal) {
+            violations++;
+        }
+        delivered[sender]++;
+        digest = digest * 31 + message.getSenderId() * 1_000_003L + clock[sender];
+        count++;
+        return causal;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getViolations() {
+        return violations;
+    }
+
+    public long getDigest() {
+        return digest;
+    }
+}
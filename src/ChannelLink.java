@@ -0,0 +1,78 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Link of a channel process to one peer, carried by the main process's wire to that peer.
+ * Messages keep their channel number on the wire so the peer hands them to its process for the
+ * same channel; credit grants get the channel in the bits above
+ * {@link MessageCodec#CREDIT_CHANNEL_SHIFT}.
+ *
+ * The main wire is looked up on every send, so the channel follows connections made after it was
+ * opened. Until the main process has a wire in that slot, sends are dropped, as they are on the
+ * main process itself.
+ */
+public class ChannelLink implements Link {
+
+    private final Process main;
+    private final int wireIndex;
+    private final int channel;
+    private final WireStats stats = new WireStats();
+
+    public ChannelLink(Process main, int wireIndex, int channel) {
+        this.main = main;
+        this.wireIndex = wireIndex;
+        this.channel = channel;
+    }
+
+    @Override
+    public void send(Process.Message message) {
+        Wire wire = main.getWire(wireIndex);
+        if (wire != null) {
+            stats.sent(1);
+            wire.sendMessage(message);
+        }
+    }
+
+    @Override
+    public void sendBatch(List<Process.Message> messages) {
+        for (Process.Message message : messages) {
+            send(message);
+        }
+    }
+
+    @Override
+    public void sendControl(byte kind, int processId, long value) {
+        Wire wire = main.getWire(wireIndex);
+        if (wire != null && kind == MessageCodec.CONTROL_CREDIT) {
+            wire.sendCredit(processId, ((long) channel << MessageCodec.CREDIT_CHANNEL_SHIFT) | value);
+        }
+    }
+
+    @Override
+    public WireStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        Wire wire = main.getWire(wireIndex);
+        return wire != null ? wire.remoteAddress() : null;
+    }
+
+    @Override
+    public int peerProcessId() {
+        Wire wire = main.getWire(wireIndex);
+        return wire != null ? wire.getPeerProcessId() : 0;
+    }
+
+    @Override
+    public boolean isFifo() {
+        Wire wire = main.getWire(wireIndex);
+        return wire == null || wire.isFifo();
+    }
+
+    @Override
+    public void close() {
+        // The main process owns the connection
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Differential vector clock encoding in the style of Singhal and Kshemkalyani.
+ *
+ * Sending side: every change to a local clock entry is stamped with a local tick (LU), and every
+ * peer remembers the tick of the last message sent to it (LS). A message to a peer only carries
+ * the entries whose LU is newer than that peer's LS. If that is not smaller than the full clock,
+ * the full clock is sent instead.
+ *
+ * Receiving side: the last full clock seen from each sender is patched with the entries a sparse
+ * message carries. Senders only use sparse clocks on FIFO links (see Link.isFifo), so this always
+ * rebuilds the clock the sender had.
+ *
+ * Both sides are part of a process snapshot: a recovered process must go on patching the clocks
+ * its peers diff against what it saw before, and must not leave out entries that changed
+ * before the crash from its own diffs.
+ *
+ * Not thread-safe, the owning process serializes access.
+ */
+public class ClockCompressor {
+
+    private final int[] lastUpdate; // LU: tick at which each local clock entry last changed
+    private final int[] lastSent; // LS: tick of the last message sent to each peer
+    private final int[][] lastKnown; // sender index -> last clock it sent us, created on its first message
+    private final int clockLength;
+    private int tick;
+
+    public ClockCompressor(int clockLength, int peerCount) {
+        this.clockLength = clockLength;
+        this.lastUpdate = new int[clockLength];
+        this.lastSent = new int[peerCount];
+        this.lastKnown = new int[clockLength][];
+    }
+
+    // Must be called whenever the local clock entry at index changes
+    public void touched(int index) {
+        lastUpdate[index] = ++tick;
+    }
+
+    // The message as it should travel to one peer, either sparse or unchanged
+    public Process.Message compressFor(int peer, Process.Message message) {
+        int since = lastSent[peer];
+        lastSent[peer] = tick;
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < clockLength; i++) {
+            if (lastUpdate[i] > since) {
+                changed.add(i);
+            }
+        }
+        // A sparse entry costs an index and a value, only worth it below half the clock
+        if (2 * changed.size() >= clockLength) {
+            return message;
+        }
+
+        int[] indices = new int[changed.size()];
+        int[] values = new int[changed.size()];
+        int[] clock = message.getVectorClock();
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = changed.get(i);
+            values[i] = clock[indices[i]];
+        }
+        return message.withCompressedClock(indices, values);
+    }
+
+    // Rebuilds the full clock of a received message, must see every message of a sender in channel order
+    public Process.Message expand(Process.Message message) {
+        int[] known = lastKnown[message.getSenderId() - 1];
+        if (known == null) {
+            known = lastKnown[message.getSenderId() - 1] = new int[clockLength];
+        }
+        if (!message.isCompressed()) {
+            System.arraycopy(message.getVectorClock(), 0, known, 0, clockLength);
+            return message;
+        }
+
+        int[] indices = message.getClockIndices();
+        int[] values = message.getVectorClock();
+        for (int i = 0; i < indices.length; i++) {
+            known[indices[i]] = values[i];
+        }
+        return message.withClock(Arrays.copyOf(known, clockLength));
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(tick);
+        for (int value : lastUpdate) {
+            out.writeInt(value);
+        }
+        for (int value : lastSent) {
+            out.writeInt(value);
+        }
+        for (int[] known : lastKnown) {
+            out.writeBoolean(known != null);
+            if (known != null) {
+                for (int value : known) {
+                    out.writeInt(value);
+                }
+            }
+        }
+    }
+
+    public void readFrom(DataInputStream in) throws IOException {
+        tick = in.readInt();
+        for (int i = 0; i < lastUpdate.length; i++) {
+            lastUpdate[i] = in.readInt();
+        }
+        for (int i = 0; i < lastSent.length; i++) {
+            lastSent[i] = in.readInt();
+        }
+        for (int i = 0; i < lastKnown.length; i++) {
+            lastKnown[i] = in.readBoolean() ? new int[clockLength] : null;
+            if (lastKnown[i] != null) {
+                for (int j = 0; j < clockLength; j++) {
+                    lastKnown[i][j] = in.readInt();
+                }
+            }
+        }
+    }
+}
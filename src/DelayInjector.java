@@ -0,0 +1,148 @@
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Artificial send delay for one peer, applied on a writer thread of its own instead of the
+ * sending thread.
+ *
+ * Each send is queued with a deadline drawn from the peer's distribution, but never before the
+ * previous send to the same peer, so a connection stays FIFO. The caller returns at once and
+ * holds no lock while the delay runs. The writer waits for the oldest deadline and then does the
+ * write itself, so a peer whose socket blocks only holds up its own sends.
+ *
+ * {@code -Dcausal.delay} sets the distribution for every peer and {@code -Dcausal.delay.<ip>:<port>}
+ * overrides it for one peer, both in milliseconds:
+ * {@code none}, {@code fixed:<ms>}, {@code uniform:<min>:<max>} or {@code exponential:<mean>}.
+ * The default {@code uniform:0:10} keeps the jitter the assignment calls for; use {@code none}
+ * to switch injection off entirely.
+ */
+public class DelayInjector {
+
+    /** Draws one delay. */
+    public interface Distribution {
+        long nextDelayNanos(Random random);
+    }
+
+    private final Distribution distribution;
+    private final String name;
+    private final Random random = new Random();
+    private long lastDeadlineNanos;
+    private final ArrayDeque<Delayed> pending = new ArrayDeque<>(); // Deadlines never decrease, the oldest is due first
+    private Thread writer; // Started with the first send
+    private boolean closed;
+
+    public DelayInjector(Distribution distribution) {
+        this(distribution, "send-delay");
+    }
+
+    public DelayInjector(Distribution distribution, String name) {
+        this.distribution = distribution;
+        this.name = name;
+    }
+
+    // The configured delay for a peer, or null when its sends should not be delayed
+    public static DelayInjector forPeer(String ip, int port) {
+        String spec = System.getProperty("causal.delay." + ip + ":" + port,
+                System.getProperty("causal.delay", "uniform:0:10"));
+        Distribution distribution = parse(spec);
+        return distribution == null ? null : new DelayInjector(distribution, "send-delay-" + ip + ":" + port);
+    }
+
+    public static Distribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        try {
+            switch (parts[0].toLowerCase()) {
+                case "none":
+                    return null;
+                case "fixed": {
+                    long delay = millisToNanos(parts[1]);
+                    return random -> delay;
+                }
+                case "uniform": {
+                    long min = millisToNanos(parts[1]);
+                    long max = millisToNanos(parts[2]);
+                    if (max < min) {
+                        throw new IllegalArgumentException("Uniform delay needs min <= max: " + spec);
+                    }
+                    return random -> min + (long) (random.nextDouble() * (max - min));
+                }
+                case "exponential": {
+                    double mean = millisToNanos(parts[1]);
+                    return random -> (long) (-mean * Math.log(1 - random.nextDouble()));
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown delay distribution: " + spec);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed delay distribution: " + spec, e);
+        }
+    }
+
+    // Run the send once its delay has passed, never before an earlier send to this peer
+    public synchronized void schedule(Runnable send) {
+        if (closed) {
+            return;
+        }
+        long deadline = Math.max(System.nanoTime() + distribution.nextDelayNanos(random), lastDeadlineNanos);
+        lastDeadlineNanos = deadline;
+        pending.add(new Delayed(deadline, send));
+        if (writer == null) {
+            writer = ThreadMode.current().newThread(name, this::writeLoop);
+            writer.start();
+        } else if (pending.size() == 1) {
+            notifyAll(); // The writer waits for work without a deadline
+        }
+    }
+
+    // Stops the writer, sends still waiting for their deadline are dropped
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        notifyAll();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Delayed next;
+                synchronized (this) {
+                    while (!closed && pending.isEmpty()) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    next = pending.peek();
+                    long remaining = next.deadlineNanos - System.nanoTime();
+                    if (remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        continue;
+                    }
+                    pending.poll();
+                }
+                next.send.run(); // Outside the lock, the write may block
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long millisToNanos(String millis) {
+        double value = Double.parseDouble(millis);
+        if (value < 0) {
+            throw new IllegalArgumentException("Delay must not be negative: " + millis);
+        }
+        return (long) (value * 1_000_000);
+    }
+
+    private static final class Delayed {
+        private final long deadlineNanos;
+        private final Runnable send;
+
+        Delayed(long deadlineNanos, Runnable send) {
+            this.deadlineNanos = deadlineNanos;
+            this.send = send;
+        }
+    }
+}
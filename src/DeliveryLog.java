@@ -0,0 +1,471 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only delivery log written by a background thread.
+ *
+ * Callers only enqueue records and never touch the filesystem. The queue is a lock-free
+ * multi-producer single-consumer linked list (one atomic swap of the tail per record or batch),
+ * so a producer never waits for the writer nor the writer for a producer. The writer drains
+ * everything queued since its last pass into one buffer and writes it with a single append
+ * (group commit), then syncs according to the configured policy. Nodes the writer is done with
+ * go back to the producers a whole chain at a time, so queueing allocates nothing once enough
+ * nodes are in circulation.
+ *
+ * Binary records are queued as buffers and copied straight into the direct write buffer, so
+ * payloads that already live off-heap reach the file without passing through a String.
+ * Delivered messages are queued as they are and written as their payload plus a newline.
+ *
+ * After every group commit the writer publishes how many appendLines calls are in the file and
+ * how long the file was right after the last of them, so the owner can record a watermark of
+ * what survived and write the rest again after a crash.
+ *
+ * A failed write ends logging for good: the writer reports the error once, every later append
+ * throws, and whatever is still queued is dropped, its messages released.
+ */
+public final class DeliveryLog implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        NONE,     // Leave flushing to the OS, same durability as the old FileWriter
+        GROUP,    // fsync after every group commit
+        INTERVAL  // fsync at most once per interval
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private static final int MAX_FREED = 1 << 16; // Nodes the writer keeps back while producers have enough
+
+    // Queue of nodes holding a String, a BinaryRecord or the lines of one appendLines call:
+    // producers swap the tail and then link the old tail to their node, the writer follows next
+    // pointers from the head, which is the last node it took a record from
+    private final AtomicReference<Node> tail;
+    private Node head; // Touched only by the writer
+    private final AtomicReference<Node> spare = new AtomicReference<>(); // Free chain for a producer to take whole
+    private final ThreadLocal<FreeList> freeLists = ThreadLocal.withInitial(FreeList::new);
+    private Node freed; // Writer's free chain, handed to spare when that is empty
+    private int freedCount;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure; // Set once by the writer, nothing is written after it
+    private long lastSyncNanos = System.nanoTime();
+    private boolean dirty; // Written since the last fsync
+    private long fileLength; // Bytes in the file, written or buffered, touched only by the writer
+
+    // Published by the writer after each group commit, a seqlock: the version is odd while it changes
+    private volatile long progressVersion;
+    private volatile long writtenBatches;
+    private volatile long writtenLength;
+
+    private volatile long groupCommits;
+    private volatile long records;
+
+    public DeliveryLog(String fileName, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.writtenLength = channel.size();
+        this.head = new Node();
+        this.tail = new AtomicReference<>(head);
+        this.writer = new Thread(this::run, "delivery-log-" + fileName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+        // The writer is a daemon, so drain whatever is queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Reads {@code causal.log.fsync} ("none", "group" or "interval") and
+     * {@code causal.log.fsyncMillis} (default 100).
+     */
+    public static DeliveryLog open(String fileName) throws IOException {
+        FsyncPolicy policy = FsyncPolicy.valueOf(System.getProperty("causal.log.fsync", "none").toUpperCase());
+        return new DeliveryLog(fileName, policy, Long.getLong("causal.log.fsyncMillis", 100L));
+    }
+
+    // Never blocks, the text is written by the background thread
+    public void append(String text) {
+        if (!isOpen()) {
+            throw notOpen();
+        }
+        Node node = node(text);
+        enqueue(node, node);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Queues raw bytes, written in order. The buffers are read on the writer thread, so they must
+     * not change until {@code written} runs there, right after they were copied out.
+     */
+    public void append(ByteBuffer[] parts, Runnable written) {
+        if (!isOpen()) {
+            throw notOpen();
+        }
+        Node node = node(new BinaryRecord(parts, written));
+        enqueue(node, node);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Queues the payloads of delivered messages, each followed by a newline, in order. Takes
+     * over one reference to every message, so callers retain them first; each is released on
+     * the writer thread right after its payload was copied out, or here if the log is closed
+     * or failed.
+     */
+    public void appendLines(Process.Message[] messages) {
+        if (!isOpen()) {
+            for (Process.Message message : messages) {
+                message.release();
+            }
+            throw notOpen();
+        }
+        // One node for the whole call, its array is kept with the node for the next calls
+        Node node = node(null);
+        if (node.lines == null || node.lines.length < messages.length) {
+            node.lines = new Process.Message[messages.length];
+        }
+        System.arraycopy(messages, 0, node.lines, 0, messages.length);
+        node.lineCount = messages.length;
+        enqueue(node, node);
+        LockSupport.unpark(writer);
+    }
+
+    public boolean isOpen() {
+        return !closed && failure == null;
+    }
+
+    private IllegalStateException notOpen() {
+        IOException cause = failure;
+        return cause != null
+                ? new IllegalStateException("Delivery log failed: " + cause.getMessage(), cause)
+                : new IllegalStateException("Delivery log is closed");
+    }
+
+    // A node from the calling thread's free chain, refilled from the writer's spare chain
+    private Node node(Object record) {
+        FreeList free = freeLists.get();
+        Node node = free.top;
+        if (node == null) {
+            node = spare.getAndSet(null);
+            if (node == null) {
+                node = new Node();
+            }
+        }
+        free.top = node.next;
+        node.next = null;
+        node.record = record;
+        return node;
+    }
+
+    // Appends the chain first..last; the writer sees it once the old tail points to it
+    private void enqueue(Node first, Node last) {
+        Node previous = tail.getAndSet(last);
+        previous.next = first;
+    }
+
+    // The next node in queue order, null when the queue is empty or a producer is midway; it
+    // stays the head, and so untouched by producers, until the next poll
+    private Node poll() {
+        Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+        recycle(head); // Nobody links to it any more, next takes over as the head
+        head = next;
+        return next;
+    }
+
+    private void recycle(Node node) {
+        node.record = null;
+        if (freedCount >= MAX_FREED) {
+            return;
+        }
+        node.next = freed;
+        freed = node;
+        if ((++freedCount & 255) == 0) {
+            handBackNodes(); // Producers running dry during a long group need not allocate
+        }
+    }
+
+    // Producers take the freed nodes, if they used up the last chain
+    private void handBackNodes() {
+        if (freed != null && spare.get() == null && spare.compareAndSet(null, freed)) {
+            freed = null;
+            freedCount = 0;
+        }
+    }
+
+    /**
+     * The number of appendLines calls whose lines are in the file, into[0], and the file length
+     * right after the last of them, into[1]. Never blocks, and the two always belong together.
+     */
+    public void readWritten(long[] into) {
+        while (true) {
+            long version = progressVersion;
+            if ((version & 1) == 0) {
+                into[0] = writtenBatches;
+                into[1] = writtenLength;
+                if (progressVersion == version) {
+                    return;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Waits until the first batches appendLines calls are in the file, or the log failed or is gone
+    public void awaitWritten(long batches) {
+        while (writtenBatches < batches && failure == null && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, 100_000);
+        }
+    }
+
+    // Cuts the file back to length; for recovery, before anything is appended
+    public void truncate(long length) throws IOException {
+        channel.truncate(length);
+    }
+
+    public long getGroupCommits() {
+        return groupCommits;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (head.next != null) {
+                    commitGroup();
+                    handBackNodes();
+                } else if (closed) {
+                    break;
+                } else {
+                    syncIfDue();
+                    LockSupport.parkNanos(this, fsyncPolicy == FsyncPolicy.INTERVAL ? fsyncIntervalNanos : Long.MAX_VALUE);
+                }
+            }
+            if (dirty && fsyncPolicy != FsyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+            System.out.println("Error writing to delivery log, dropping all further deliveries: " + e.getMessage());
+            discardQueued();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // After a failed write, until closed: releases what the failed group had not reached yet and
+    // everything producers queued before they saw the failure
+    private void discardQueued() {
+        releaseLines(head);
+        while (true) {
+            Node node;
+            while ((node = poll()) != null) {
+                if (node.record instanceof BinaryRecord) {
+                    ((BinaryRecord) node.record).done();
+                }
+                releaseLines(node);
+            }
+            if (closed) {
+                break;
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    private static void releaseLines(Node node) {
+        for (int i = 0; i < node.lineCount; i++) {
+            if (node.lines[i] != null) {
+                node.lines[i].release();
+                node.lines[i] = null;
+            }
+        }
+        node.lineCount = 0;
+    }
+
+    // Everything queued right now goes out in one pass
+    private void commitGroup() throws IOException {
+        Node node;
+        long count = 0;
+        long batches = 0;
+        long batchEnd = -1;
+        fileLength = channel.position(); // The end of the file, it is opened for appending
+        while ((node = poll()) != null) {
+            if (node.record == null) {
+                for (int i = 0; i < node.lineCount; i++) {
+                    Process.Message line = node.lines[i];
+                    node.lines[i] = null; // Released by putLine, even if the write fails
+                    putLine(line);
+                }
+                count += node.lineCount;
+                node.lineCount = 0;
+                batches++;
+                batchEnd = fileLength + buffer.position();
+                continue;
+            }
+            Object record = node.record;
+            count++;
+            if (record instanceof BinaryRecord) {
+                ((BinaryRecord) record).copyTo(this);
+                continue;
+            }
+            CharBuffer chars = CharBuffer.wrap((String) record);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (!result.isOverflow()) {
+                    break;
+                }
+                drainBuffer();
+            }
+            encoder.reset();
+        }
+        drainBuffer();
+        dirty = true;
+        records += count;
+        groupCommits++;
+
+        if (fsyncPolicy == FsyncPolicy.GROUP) {
+            channel.force(false);
+            dirty = false;
+        } else {
+            syncIfDue();
+        }
+        if (batches > 0) {
+            progressVersion++;
+            writtenBatches += batches;
+            writtenLength = batchEnd;
+            progressVersion++;
+        }
+    }
+
+    private void syncIfDue() throws IOException {
+        if (fsyncPolicy == FsyncPolicy.INTERVAL && dirty && System.nanoTime() - lastSyncNanos >= fsyncIntervalNanos) {
+            channel.force(false);
+            lastSyncNanos = System.nanoTime();
+            dirty = false;
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileLength += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Small parts are gathered in the write buffer, one that does not fit is written on its own
+    private void put(ByteBuffer part) throws IOException {
+        if (part.remaining() > buffer.remaining()) {
+            drainBuffer();
+            if (part.remaining() > buffer.capacity()) {
+                while (part.hasRemaining()) {
+                    fileLength += channel.write(part);
+                }
+                return;
+            }
+        }
+        buffer.put(part);
+    }
+
+    // Payload and newline of a delivered message, copied with absolute reads since other threads
+    // may be reading the same buffer
+    private void putLine(Process.Message message) throws IOException {
+        try {
+            ByteBuffer payload = message.peekPayload();
+            if (payload == null) {
+                put(message.getPayload()); // Text message
+            } else if (payload.remaining() <= buffer.capacity()) {
+                if (payload.remaining() > buffer.remaining()) {
+                    drainBuffer();
+                }
+                buffer.put(buffer.position(), payload, payload.position(), payload.remaining());
+                buffer.position(buffer.position() + payload.remaining());
+            } else {
+                put(payload.duplicate());
+            }
+            if (!buffer.hasRemaining()) {
+                drainBuffer();
+            }
+            buffer.put((byte) '\n');
+        } finally {
+            message.release();
+        }
+    }
+
+    private static final class Node {
+        private Object record; // String or BinaryRecord
+        private Process.Message[] lines; // Kept across reuses, valid up to lineCount
+        private int lineCount;
+        private volatile Node next;
+    }
+
+    private static final class FreeList {
+        private Node top;
+    }
+
+    private static final class BinaryRecord {
+        private final ByteBuffer[] parts;
+        private final Runnable written;
+
+        BinaryRecord(ByteBuffer[] parts, Runnable written) {
+            this.parts = parts;
+            this.written = written;
+        }
+
+        void copyTo(DeliveryLog log) throws IOException {
+            try {
+                for (ByteBuffer part : parts) {
+                    log.put(part);
+                }
+            } finally {
+                done();
+            }
+        }
+
+        // The buffers are no longer needed, whether they were copied or not
+        void done() {
+            if (written != null) {
+                written.run();
+            }
+        }
+    }
+}
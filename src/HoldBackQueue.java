@@ -0,0 +1,167 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Causal hold-back queue indexed by sender and sequence number.
+ *
+ * Only the next expected message of each sender can ever be deliverable. Such a head message
+ * is checked once against the local clock; if some other entry k is still behind, the message
+ * is parked on entry k until the clock reaches the value it needs. Advancing a clock entry
+ * therefore wakes exactly the messages it may unblock, instead of rescanning the whole buffer.
+ *
+ * Held messages of a sender sit in a ring indexed by sequence number, which doubles when a
+ * message arrives further ahead than it reaches, and entries are reused once their message is
+ * delivered, so holding a message back allocates nothing once the buffers have grown.
+ *
+ * Not thread-safe, the owning process serializes access.
+ */
+public class HoldBackQueue {
+
+    private static final int INITIAL_RING = 8; // Held messages per sender before its ring grows
+    private static final Comparator<Entry> NEEDED_ORDER = (a, b) -> Integer.compare(a.needed, b.needed);
+
+    private final int[] clock; // Vector clock of the owning process, only read here
+    private final Entry[][] pendingBySender; // sender index -> entries by sequence % ring length
+    private final List<PriorityQueue<Entry>> waitersByEntry; // clock index -> entries parked on it
+    private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+    private final ArrayDeque<Entry> spare = new ArrayDeque<>(); // Entries of delivered messages
+    private int size;
+
+    public HoldBackQueue(int[] clock) {
+        this.clock = clock;
+        this.pendingBySender = new Entry[clock.length][INITIAL_RING];
+        this.waitersByEntry = new ArrayList<>(clock.length);
+        for (int i = 0; i < clock.length; i++) {
+            waitersByEntry.add(new PriorityQueue<>(NEEDED_ORDER));
+        }
+    }
+
+    /**
+     * Holds back a message that arrived ahead of its causal dependencies.
+     *
+     * @return false if the message is a duplicate of one already delivered or already held
+     */
+    public boolean add(Process.Message message) {
+        int sender = message.getSenderId() - 1;
+        int sequence = message.getVectorClock()[sender];
+        if (sequence <= clock[sender] || pending(sender, sequence) != null) {
+            return false;
+        }
+
+        Entry entry = spare.isEmpty() ? new Entry() : spare.poll();
+        entry.message = message;
+        entry.sequence = sequence;
+        while (sequence - clock[sender] > pendingBySender[sender].length) {
+            growRing(sender);
+        }
+        Entry[] ring = pendingBySender[sender];
+        ring[sequence & (ring.length - 1)] = entry;
+        size++;
+        if (sequence == clock[sender] + 1) {
+            evaluate(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Must be called after clock[index] moved forward, wakes the messages that were waiting on it.
+     */
+    public void advanced(int index) {
+        Entry head = pending(index, clock[index] + 1);
+        if (head != null) {
+            evaluate(head);
+        }
+
+        PriorityQueue<Entry> waiters = waitersByEntry.get(index);
+        while (!waiters.isEmpty() && waiters.peek().needed <= clock[index]) {
+            evaluate(waiters.poll());
+        }
+    }
+
+    /**
+     * Removes and returns the next message that is deliverable against the current clock,
+     * or null if none is. The caller delivers it and then reports the clock change via advanced.
+     */
+    public Process.Message poll() {
+        Entry entry = ready.poll();
+        if (entry == null) {
+            return null;
+        }
+        Process.Message message = entry.message;
+        Entry[] ring = pendingBySender[message.getSenderId() - 1];
+        ring[entry.sequence & (ring.length - 1)] = null;
+        size--;
+        entry.message = null;
+        entry.ready = false;
+        spare.add(entry);
+        return message;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Every held message, in no particular order
+    public List<Process.Message> messages() {
+        List<Process.Message> messages = new ArrayList<>(size);
+        for (Entry[] ring : pendingBySender) {
+            for (Entry entry : ring) {
+                if (entry != null) {
+                    messages.add(entry.message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The entry held for a sender's sequence number, null if there is none
+    private Entry pending(int sender, int sequence) {
+        Entry[] ring = pendingBySender[sender];
+        Entry entry = ring[sequence & (ring.length - 1)];
+        return entry != null && entry.sequence == sequence ? entry : null;
+    }
+
+    // Held sequences all lie within ring length of the clock, so they keep distinct slots
+    private void growRing(int sender) {
+        Entry[] ring = pendingBySender[sender];
+        Entry[] larger = new Entry[2 * ring.length];
+        for (Entry entry : ring) {
+            if (entry != null) {
+                larger[entry.sequence & (larger.length - 1)] = entry;
+            }
+        }
+        pendingBySender[sender] = larger;
+    }
+
+    // Either marks a head entry ready or parks it on the first clock entry that is still behind
+    private void evaluate(Entry entry) {
+        if (entry.ready) {
+            return;
+        }
+        int sender = entry.message.getSenderId() - 1;
+        int[] messageClock = entry.message.getVectorClock();
+        for (int i = 0; i < clock.length; i++) {
+            if (i != sender && messageClock[i] > clock[i]) {
+                entry.needed = messageClock[i];
+                waitersByEntry.get(i).add(entry);
+                return;
+            }
+        }
+        entry.ready = true;
+        ready.add(entry);
+    }
+
+    private static class Entry {
+        Process.Message message; // Null while the entry is spare
+        int sequence; // The message's sequence number, its sender's clock entry
+        int needed; // Clock value the entry is parked on
+        boolean ready;
+    }
+}
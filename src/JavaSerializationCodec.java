@@ -0,0 +1,66 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Fallback codec that keeps Java serialization for the message body.
+ * Each message gets its own object stream, so no handle table survives between frames.
+ */
+public class JavaSerializationCodec implements MessageCodec {
+
+    @Override
+    public void writeFrame(DataOutputStream out, Process.Message message) throws IOException {
+        writeObjectFrame(out, message);
+    }
+
+    @Override
+    public void writeBatch(DataOutputStream out, List<Process.Message> messages) throws IOException {
+        writeObjectFrame(out, messages.toArray(new Process.Message[0]));
+    }
+
+    @Override
+    public int readFrame(DataInputStream in, Consumer<Process.Message> sink, ControlHandler control) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return MessageCodec.readControl(in, length, control);
+        }
+        byte[] body = new byte[MessageCodec.checkFrameLength(length)];
+        in.readFully(body);
+
+        Object decoded;
+        try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(body))) {
+            decoded = objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to decode frame", e);
+        }
+
+        if (decoded instanceof Process.Message) {
+            sink.accept((Process.Message) decoded);
+            return 1;
+        }
+        if (decoded instanceof Process.Message[]) {
+            Process.Message[] batch = (Process.Message[]) decoded;
+            for (Process.Message message : batch) {
+                sink.accept(message);
+            }
+            return batch.length;
+        }
+        throw new InvalidObjectException("Frame does not contain a Message");
+    }
+
+    private static void writeObjectFrame(DataOutputStream out, Object value) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(body)) {
+            objectOut.writeObject(value);
+        }
+        out.writeInt(body.size());
+        body.writeTo(out);
+    }
+}
@@ -0,0 +1,37 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * A connection to one peer that takes whole messages, for transports that do their own framing.
+ * A Wire built on a link hands every send and batch flush to it and does no I/O itself.
+ */
+public interface Link {
+
+    void send(Process.Message message);
+
+    // The messages travel together where the transport supports it
+    void sendBatch(List<Process.Message> messages);
+
+    // A control frame ahead of queued messages, transports without control frames drop it
+    default void sendControl(byte kind, int processId, long value) {
+    }
+
+    // Traffic through this link, read by the metrics dump
+    WireStats getStats();
+
+    // Address of the peer, or null when the link has none
+    InetSocketAddress remoteAddress();
+
+    // Process ID of the peer when the link knows it, 0 otherwise
+    default int peerProcessId() {
+        return 0;
+    }
+
+    // False when messages may overtake each other or get lost on the way, which the diff-encoded
+    // clocks of ClockCompressor cannot survive
+    default boolean isFifo() {
+        return true;
+    }
+
+    void close();
+}
@@ -0,0 +1,180 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load for one process, started by a trigger and reported back to it.
+ *
+ * Messages are scheduled at a fixed rate from a common start time. A message that falls behind
+ * its schedule goes out as soon as possible but keeps its scheduled time, so queueing in this
+ * process counts towards latency instead of slowing the offered load down. When the submission
+ * queue is full the message is counted as rejected and the schedule moves on.
+ *
+ * Every payload starts with "Message N from Process P @T" (T the scheduled send time in
+ * microseconds) and is padded with 'x' to the configured size. Deliveries are checked for causal
+ * order by a CausalChecker, the same check the simulator uses. Delivery latency is taken from T, so across machines it
+ * includes their clock offset, and only counts messages scheduled after the warmup.
+ *
+ * Settings, each from the trigger line or else from -Dload.NAME: rate (messages per second,
+ * 20), payloadBytes (64), durationSeconds (10), warmupSeconds (2), drainSeconds (10), startAt
+ * (epoch milliseconds, now). Rate and duration must be positive.
+ */
+public class LoadDriver {
+
+    private final Process process;
+    private final double rate;
+    private final int payloadBytes;
+    private final long durationSeconds;
+    private final long warmupSeconds;
+    private final long drainSeconds;
+    private final long startAtMillis;
+
+    private final Histogram latencyMicros = new Histogram();
+    private final CausalChecker checker; // Fed on the protocol loop only
+    private long measureFromMicros;
+    private long measureToMicros;
+    private volatile long deliveredInWindow;
+    private volatile long ownDelivered;
+
+    public LoadDriver(Process process, Map<String, String> settings) {
+        this.process = process;
+        this.rate = Double.parseDouble(setting(settings, "rate", "20"));
+        this.payloadBytes = Integer.parseInt(setting(settings, "payloadBytes", "64"));
+        this.durationSeconds = Long.parseLong(setting(settings, "durationSeconds", "10"));
+        this.warmupSeconds = Long.parseLong(setting(settings, "warmupSeconds", "2"));
+        this.drainSeconds = Long.parseLong(setting(settings, "drainSeconds", "10"));
+        this.startAtMillis = Long.parseLong(setting(settings, "startAt", String.valueOf(System.currentTimeMillis())));
+        // Both end up as divisors, in the send interval and the delivery rate
+        if (!(rate > 0) || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Load rate and durationSeconds must be positive.");
+        }
+        this.checker = new CausalChecker(process.getTotalProcesses());
+    }
+
+    private static String setting(Map<String, String> settings, String name, String fallback) {
+        String value = settings.get(name);
+        return value != null ? value : System.getProperty("load." + name, fallback);
+    }
+
+    // "START name=value ...", a bare START uses the local settings
+    public static Map<String, String> parseTrigger(String line) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        String[] words = line.trim().split("\\s+");
+        for (int i = 1; i < words.length; i++) {
+            int eq = words[i].indexOf('=');
+            if (eq > 0) {
+                settings.put(words[i].substring(0, eq), words[i].substring(eq + 1));
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Waits for the start time, sends for warmup plus duration, then waits up to drainSeconds for
+     * our own messages to be delivered here.
+     *
+     * @return the result line, "RESULT name=value ..."
+     */
+    public String run() throws InterruptedException {
+        long startMicros = startAtMillis * 1000;
+        measureFromMicros = startMicros + TimeUnit.SECONDS.toMicros(warmupSeconds);
+        measureToMicros = measureFromMicros + TimeUnit.SECONDS.toMicros(durationSeconds);
+        process.setDeliveryListener(this::delivered);
+
+        long wait = startAtMillis - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        System.out.printf("Process %d sending %.1f messages/s of %d bytes for %d+%d s%n",
+                process.getProcessID(), rate, payloadBytes, warmupSeconds, durationSeconds);
+
+        // Scheduled on the monotonic clock, stamped with the matching wall-clock time
+        long total = (long) (rate * (warmupSeconds + durationSeconds));
+        double intervalMicros = 1_000_000.0 / rate;
+        long originNanos = System.nanoTime() - (ProcessMetrics.currentTimeMicros() - startMicros) * 1000;
+        long sent = 0;
+        long rejected = 0;
+        for (long k = 0; k < total; k++) {
+            long scheduledMicros = startMicros + (long) (k * intervalMicros);
+            long due = originNanos + (scheduledMicros - startMicros) * 1000;
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            if (process.tryBroadcast(payload(sent + 1, scheduledMicros))) {
+                sent++;
+            } else {
+                rejected++;
+            }
+        }
+
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (ownDelivered < sent && System.nanoTime() < drainUntil) {
+            Thread.sleep(50);
+        }
+        process.setDeliveryListener(null);
+        return result(sent, rejected);
+    }
+
+    private ByteBuffer payload(long number, long scheduledMicros) {
+        byte[] header = ("Message " + number + " from Process " + process.getProcessID() + " @" + scheduledMicros)
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] payload = Arrays.copyOf(header, Math.max(header.length, payloadBytes));
+        Arrays.fill(payload, header.length, payload.length, (byte) 'x');
+        return ByteBuffer.wrap(payload);
+    }
+
+    // Called on the protocol loop with each delivered round
+    private void delivered(List<Process.Message> round) {
+        long now = ProcessMetrics.currentTimeMicros();
+        for (Process.Message message : round) {
+            checker.delivered(message);
+            if (message.getSenderId() == process.getProcessID()) {
+                ownDelivered++;
+            }
+
+            long scheduled = scheduledMicros(message.getPayload());
+            if (scheduled >= measureFromMicros && scheduled < measureToMicros) {
+                latencyMicros.record(now - scheduled);
+            }
+            if (now >= measureFromMicros && now < measureToMicros) {
+                deliveredInWindow++;
+            }
+        }
+    }
+
+    // The digits after the first '@', 0 for payloads this driver did not send
+    private static long scheduledMicros(ByteBuffer payload) {
+        int i = payload.position();
+        int limit = payload.limit();
+        while (i < limit && payload.get(i) != '@') {
+            i++;
+        }
+        long value = 0;
+        for (i++; i < limit; i++) {
+            byte b = payload.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private String result(long sent, long rejected) {
+        return String.format("RESULT process=%d sent=%d rejected=%d delivered=%d ownUndelivered=%d"
+                        + " deliveriesPerSecond=%.1f p50=%d p99=%d p999=%d max=%d violations=%d digest=%d",
+                process.getProcessID(), sent, rejected, checker.getCount(), sent - ownDelivered,
+                (double) deliveredInWindow / durationSeconds, latencyMicros.getValueAtPercentile(50),
+                latencyMicros.getValueAtPercentile(99), latencyMicros.getValueAtPercentile(99.9),
+                latencyMicros.getMax(), checker.getViolations(), checker.getDigest());
+    }
+}
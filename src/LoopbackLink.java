@@ -0,0 +1,90 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * In-memory link between two processes in the same JVM. Messages are handed to the receiving
+ * process as they are, without encoding; both sides treat messages as immutable.
+ *
+ * Without a network the receiver is called on the sending thread. With a SimulatedNetwork
+ * every message gets the network's latency, reordering and loss instead.
+ */
+public class LoopbackLink implements Link {
+
+    private final Consumer<Process.Message> receiver;
+    private final MessageCodec.ControlHandler control; // Null drops control frames
+    private final SimulatedNetwork network;
+    private final SimulatedNetwork.Channel channel;
+    private final WireStats stats = new WireStats();
+    private volatile boolean closed;
+
+    public LoopbackLink(Consumer<Process.Message> receiver) {
+        this(receiver, null);
+    }
+
+    public LoopbackLink(Consumer<Process.Message> receiver, SimulatedNetwork network) {
+        this(receiver, null, network);
+    }
+
+    public LoopbackLink(Consumer<Process.Message> receiver, MessageCodec.ControlHandler control,
+                        SimulatedNetwork network) {
+        this.receiver = receiver;
+        this.control = control;
+        this.network = network;
+        this.channel = network != null ? network.newChannel() : null;
+    }
+
+    @Override
+    public void send(Process.Message message) {
+        if (closed) {
+            return;
+        }
+        stats.sent(1);
+        if (network == null) {
+            receiver.accept(message);
+        } else {
+            network.transmit(channel, message, receiver);
+        }
+    }
+
+    @Override
+    public void sendBatch(List<Process.Message> messages) {
+        for (Process.Message message : messages) {
+            send(message);
+        }
+    }
+
+    // Handed over at once, even with a network: control frames carry cumulative values, so
+    // overtaking messages is harmless
+    @Override
+    public void sendControl(byte kind, int processId, long value) {
+        if (closed || control == null) {
+            return;
+        }
+        try {
+            control.control(kind, processId, value);
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public WireStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return null;
+    }
+
+    @Override
+    public boolean isFifo() {
+        return network == null || network.isFifo();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
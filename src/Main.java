@@ -1,10 +1,9 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 //TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
 // click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
 
@@ -12,14 +11,11 @@ public class Main {
 
     int processID;
     Process process;
-    int noOtherProcesses;
 
 
     public Main(int processID, int serverPort, String[] ips, int[] ports) {
         this.processID = processID;
 
-        this.noOtherProcesses = ips.length;
-
         this.process = new Process(processID, serverPort, ips, ports);
 
         System.out.println("Connections via wires have been successfully established for Process " + this.processID + ".");
@@ -27,59 +23,27 @@ public class Main {
 
     public void launch() {
 
-        waitForTrigger(1234);
+        waitForTrigger(Integer.getInteger("load.triggerPort", 1234));
     }
 
-    private void startSendingMessages() {
-        System.out.println("Starting to send messages from Process " + processID + ".");
-
-        final int totalMessages = 100;
-        int messageCount = 0;
-
-        Map<Integer, Integer> receivedMessageCount = new HashMap<>();
-
-        for (int i = 1; i <= noOtherProcesses + 1; i++) {
-            if (i != processID) receivedMessageCount.put(i, 0);
-        }
-
-        while (messageCount < totalMessages) {
-            System.out.println("Sending Message number: " + messageCount);
-            process.broadcastMessage("Message " + (messageCount + 1) + " from Process " + processID);
-            messageCount++;
-
-            try {
-                Thread.sleep(50); // 1 milliseconds wait
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        boolean allMessagesReceived;
-        do {
-            allMessagesReceived = receivedMessageCount.values().stream().allMatch(count -> count >= totalMessages);
-            try {
-                Thread.sleep(500); // Wait for half a second before checking again
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        } while (!allMessagesReceived);
-
-        System.out.println("Process " + processID + " has completed its message exchange.");
-    }
-
-
+    // One load run with the trigger's settings, the result line goes back on the trigger connection
     private void waitForTrigger(int triggerPort) {
         try (ServerSocket serverSocket = new ServerSocket(triggerPort)) {
             System.out.println("Waiting for trigger on port " + triggerPort + "...");
             try (Socket clientSocket = serverSocket.accept();
-                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
                 String triggerMessage = in.readLine();
-                if ("START".equals(triggerMessage)) {
+                if (triggerMessage != null && triggerMessage.startsWith("START")) {
                     System.out.println("Trigger received. Starting to send messages...");
-                    // Place the logic here to start sending messages
-                    startSendingMessages();
+                    String result = new LoadDriver(process, LoadDriver.parseTrigger(triggerMessage)).run();
+                    System.out.println(result);
+                    out.println(result);
+                    System.out.println("Process " + processID + " has completed its message exchange.");
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -104,7 +68,15 @@ public class Main {
             ports[i] = Integer.parseInt(ipAndPort[1]);
         }
 
-        Main instance = new Main(processID, serverPort, ips, ports);
+        Main instance;
+        try {
+            instance = new Main(processID, serverPort, ips, ports);
+        } catch (IllegalStateException e) {
+            // The group could not be formed, the server threads would otherwise keep us alive
+            System.out.println("Startup failed: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
 
         // Step 3: Call the non-static main method on the instance
         instance.launch(); // Note: This calls the non-static main method
@@ -0,0 +1,139 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and decodes {@link Process.Message} frames on a byte stream.
+ * Every frame is length-prefixed so a reader always knows where the next one starts.
+ *
+ * Control frames of the reliable layer share the stream with every codec. Their prefix is the
+ * negated control kind instead of a length: {@code int -kind, int processId, long value}.
+ */
+public interface MessageCodec {
+
+    // Upper bound on a single frame body, guards against reading garbage lengths
+    int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    byte CONTROL_HELLO = 1; // Sender to receiver on every (re)connect, value unused
+    byte CONTROL_ACK = 2;   // Receiver to sender, value is the highest contiguous sequence received
+    byte CONTROL_NACK = 3;  // Receiver to sender, value is the first missing sequence
+    byte CONTROL_IDENTIFY = 4; // Bootstrap handshake, both directions, value unused
+    byte CONTROL_CREDIT = 5; // Flow control grant, value is how many of the addressee's messages the sender has delivered
+    byte CONTROL_FENCE = 6; // Shared memory writer to reader, in the ring and over the fallback wire, value is the fence number
+    byte CONTROL_LAST = CONTROL_FENCE; // Highest kind, a prefix below its negation is a corrupt length
+    // Credit grants for a channel other than 0 carry the channel above this bit, the count below it
+    int CREDIT_CHANNEL_SHIFT = 48;
+
+    /** Receives control frames read from a stream. */
+    interface ControlHandler {
+        void control(byte kind, int processId, long value) throws IOException;
+    }
+
+    /**
+     * Writes one complete frame for the message. The caller is responsible for flushing.
+     *
+     * @param out     the stream to write to
+     * @param message the message to encode
+     * @throws IOException if the stream fails
+     */
+    void writeFrame(DataOutputStream out, Process.Message message) throws IOException;
+
+    /**
+     * Writes one frame carrying several messages, which the reader hands out in the same order.
+     *
+     * @param out      the stream to write to
+     * @param messages the messages to coalesce, must not be empty
+     * @throws IOException if the stream fails
+     */
+    void writeBatch(DataOutputStream out, List<Process.Message> messages) throws IOException;
+
+    /**
+     * Reads one complete frame and passes every message it carries to the sink, in order.
+     *
+     * @param in   the stream to read from
+     * @param sink receives the decoded messages
+     * @return the number of messages in the frame
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    default int readFrame(DataInputStream in, Consumer<Process.Message> sink) throws IOException {
+        return readFrame(in, sink, null);
+    }
+
+    /**
+     * Same as {@link #readFrame(DataInputStream, Consumer)}, but a control frame goes to the
+     * control handler instead, or is skipped when there is none, and counts as zero messages.
+     */
+    int readFrame(DataInputStream in, Consumer<Process.Message> sink, ControlHandler control) throws IOException;
+
+    /**
+     * Decodes one frame that is already in memory, from just after its length prefix up to the
+     * buffer's limit. The buffer may be reused once this returns, decoded messages never point
+     * into it. The default copies the frame and goes through the stream reader.
+     *
+     * @param body the frame body, consumed entirely
+     * @param sink receives the decoded messages
+     * @return the number of messages in the frame
+     * @throws IOException if the frame is malformed
+     */
+    default int readFrame(ByteBuffer body, Consumer<Process.Message> sink) throws IOException {
+        byte[] frame = new byte[4 + body.remaining()];
+        ByteBuffer.wrap(frame).putInt(body.remaining()).put(body);
+        return readFrame(new DataInputStream(new ByteArrayInputStream(frame)), sink);
+    }
+
+    /**
+     * Encodes one complete frame for a gathering write. The buffers may share memory with the
+     * message payload, so the message must stay alive until they are written.
+     */
+    default ByteBuffer[] encode(Process.Message message) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(128);
+        writeFrame(new DataOutputStream(frame), message);
+        return new ByteBuffer[]{ByteBuffer.wrap(frame.toByteArray())};
+    }
+
+    static void writeControl(DataOutputStream out, byte kind, int processId, long value) throws IOException {
+        out.writeInt(-kind);
+        out.writeInt(processId);
+        out.writeLong(value);
+    }
+
+    // Finishes a control frame whose negative prefix the codec has already read
+    static int readControl(DataInputStream in, int prefix, ControlHandler control) throws IOException {
+        if (prefix < -CONTROL_LAST) {
+            throw new java.io.StreamCorruptedException("Invalid frame length: " + prefix);
+        }
+        int processId = in.readInt();
+        long value = in.readLong();
+        if (control != null) {
+            control.control((byte) -prefix, processId, value);
+        }
+        return 0;
+    }
+
+    /**
+     * Picks the codec named by the {@code causal.codec} system property ("binary" or "java").
+     * Both ends of a connection must use the same codec.
+     */
+    static MessageCodec fromSystemProperties() {
+        String name = System.getProperty("causal.codec", "binary");
+        if ("java".equalsIgnoreCase(name)) {
+            return new JavaSerializationCodec();
+        }
+        if (!"binary".equalsIgnoreCase(name)) {
+            System.out.println("Unknown codec '" + name + "', using binary");
+        }
+        return new BinaryMessageCodec();
+    }
+
+    static int checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new java.io.StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
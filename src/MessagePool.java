@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Recycles decoded messages together with their clock arrays, so the steady-state receive path
+ * does not leave a message and an int[] behind for the GC with every frame.
+ *
+ * Only messages the codec decodes with a full clock take part. Such a message is handed out by
+ * {@link #acquire}, filled in place, and comes back here on its last
+ * {@link Process.Message#release()}, right after its payload went back to the BufferPool.
+ * Messages that were copied (withClock, withCompressedClock) are never recycled, the copies
+ * share their reference count. Idle messages are kept per clock length, at most a fixed number
+ * each; more releases than that are left to the GC. Thread-safe.
+ *
+ * Off unless {@code -Dcausal.recycle=true}; {@code -Dcausal.recycle.messagesPerLength} sets how
+ * many idle messages each clock length keeps (default 4096).
+ */
+public class MessagePool {
+
+    private static final int MAX_POOLED_CLOCK = 1 << 16; // Larger groups allocate as before
+
+    private static final MessagePool SHARED = new MessagePool(Boolean.getBoolean("causal.recycle"),
+            Integer.getInteger("causal.recycle.messagesPerLength", 4096));
+
+    private final boolean enabled;
+    private final int messagesPerLength;
+    private volatile Stack[] stacks = new Stack[0]; // Indexed by clock length, grown on demand
+
+    public MessagePool(boolean enabled, int messagesPerLength) {
+        this.enabled = enabled;
+        this.messagesPerLength = messagesPerLength;
+    }
+
+    public static MessagePool shared() {
+        return SHARED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * A message with a clock array of exactly clockLength entries, holding whatever the last user
+     * left in it; the caller overwrites every entry and then calls Process.Message.reuse.
+     */
+    Process.Message acquire(int clockLength) {
+        if (!enabled || clockLength > MAX_POOLED_CLOCK) {
+            return Process.Message.blank(clockLength, false);
+        }
+        Process.Message message = stack(clockLength).pop();
+        return message != null ? message : Process.Message.blank(clockLength, true);
+    }
+
+    // Called by the message itself once nothing holds it any more
+    void recycle(Process.Message message) {
+        int clockLength = message.getVectorClock().length;
+        Stack[] current = stacks;
+        if (clockLength < current.length && current[clockLength] != null) {
+            current[clockLength].push(message);
+        }
+    }
+
+    public int getIdleCount(int clockLength) {
+        Stack[] current = stacks;
+        return clockLength < current.length && current[clockLength] != null ? current[clockLength].size() : 0;
+    }
+
+    private Stack stack(int clockLength) {
+        Stack[] current = stacks;
+        if (clockLength < current.length && current[clockLength] != null) {
+            return current[clockLength];
+        }
+        synchronized (this) {
+            current = stacks;
+            if (clockLength >= current.length) {
+                current = Arrays.copyOf(current, Math.max(clockLength + 1, 2 * current.length));
+            }
+            if (current[clockLength] == null) {
+                current[clockLength] = new Stack(messagesPerLength);
+            }
+            stacks = current;
+            return current[clockLength];
+        }
+    }
+
+    // Idle messages of one clock length, most recently released first so they are still in cache
+    private static final class Stack {
+        private final Process.Message[] idle;
+        private int size;
+
+        Stack(int capacity) {
+            this.idle = new Process.Message[capacity];
+        }
+
+        synchronized Process.Message pop() {
+            if (size == 0) {
+                return null;
+            }
+            Process.Message message = idle[--size];
+            idle[size] = null;
+            return message;
+        }
+
+        synchronized void push(Process.Message message) {
+            if (size < idle.length) {
+                idle[size++] = message;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * One-to-many transport over UDP multicast: a broadcast is encoded once and sent as a single
+ * datagram that every member of the group receives.
+ *
+ * Datagrams carry a type byte, the sender's process ID and session, then:
+ * <pre>
+ * DATA       long sequence, frame as written by the process codec (length prefix included)
+ * NACK       int target process ID, long first missing sequence, long first sequence not missing
+ * HEARTBEAT  long highest sequence sent
+ * ACK        int target process ID, long target session, long highest sequence passed on in order
+ * GONE       long first sequence the sender still holds, int target process ID
+ * </pre>
+ * Sequences start at 1 per session; the session changes when the sender restarts. Receivers pass
+ * each sender's messages on in sequence order. A gap holds later messages back, up to the buffer
+ * size, and is answered with a NACK; the sender multicasts the missing messages again from its
+ * ring of recent sends and everyone else drops the duplicates. Heartbeats every heartbeatMillis
+ * let receivers notice a lost last message. NACKs and repairs go to the whole group, so the
+ * transport needs no unicast addresses and works with every process on one host.
+ *
+ * Receivers acknowledge what they passed on every quarter buffer and on every heartbeat. A send
+ * whose ring slot still holds a message some present peer has not acknowledged is refused, so
+ * the message goes over the TCP wires instead and nothing a live receiver waits for leaves the
+ * ring. A peer counts as present while it acknowledged within absentMillis; acknowledgements are
+ * tracked per session of the peer, a restarted peer starts over. Peers that never joined the
+ * group, or stopped acknowledging, hold nothing back. When such a peer asks for messages that are
+ * gone, the sender answers with GONE and the receiver reports the loss and goes on after it, as a
+ * new TCP connection would.
+ *
+ * Messages whose frame does not fit into a datagram are refused and go over the TCP wires. Clocks
+ * are always sent in full, since all receivers share one datagram.
+ *
+ * Settings: -Dcausal.multicast.group (239.1.2.3), -Dcausal.multicast.port (7500),
+ * -Dcausal.multicast.interface (lo), -Dcausal.multicast.buffer (4096 messages per sender and in
+ * the repair ring), -Dcausal.multicast.heartbeatMillis (100), -Dcausal.multicast.absentMillis
+ * (2000, at least two heartbeats). For testing the repair path,
+ * -Dcausal.multicast.loss drops that fraction of outgoing data datagrams (0.0).
+ */
+public class MulticastTransport {
+
+    static final byte DATA = 1;
+    static final byte NACK = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte ACK = 4;
+    static final byte GONE = 5;
+    private static final int HEADER_LENGTH = 1 + 4 + 8; // Type, process ID, session
+    private static final int MAX_DATAGRAM = 65_507; // Largest UDP payload over IPv4
+
+    private final int processId;
+    private final long session;
+    private final MessageCodec codec;
+    private final Consumer<Process.Message> receiver;
+    private final DatagramChannel channel;
+    private final InetSocketAddress group;
+    private final int bufferSize;
+    private final long heartbeatMillis;
+    private final long absentMillis;
+    private final double loss;
+    private final Random lossRandom = new Random(Long.getLong("causal.multicast.seed", 1L));
+    private final WireStats stats = new WireStats();
+
+    // Sending side, guarded by sendBuffer
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final Process.Message[] sentRing; // Recent sends by sequence % bufferSize, for repairs
+    private long nextSequence = 1;
+    private final long[] ackedUpTo; // Highest sequence each peer passed on, by process ID - 1
+    private final long[] ackingSession; // Session of each peer that ackedUpTo belongs to
+    private final long[] lastAckMillis; // When each peer last acknowledged, 0 if it never did
+    private final boolean[] absent; // Reported as no longer acknowledging
+    private boolean ringFull;
+    private boolean ringFullReported; // For this episode; a peer just behind may make them flap
+    private long ringFullReportedMillis;
+
+    // Receiving side, touched by the receive thread only; arrays are indexed by process ID - 1
+    private final long[] sessions;
+    private final long[] expected; // Next sequence to pass on from each sender
+    private final long[] nackedUpTo; // End of the last gap asked for, so a gap is asked for once per heartbeat
+    private final long[] ackSent; // Last sequence acknowledged to each sender
+    private final Process.Message[][] held; // Messages after a gap, by sequence % bufferSize
+    private long repairs;
+    private long nacks;
+    private long duplicates;
+    private Process.Message decoded; // Set by decodeSink, the one message of the datagram being read
+    private final Consumer<Process.Message> decodeSink = message -> decoded = message;
+
+    private volatile boolean running = true;
+    private Thread receiveThread;
+    private Thread heartbeatThread;
+
+    public MulticastTransport(int processId, int totalProcesses, MessageCodec codec,
+                              Consumer<Process.Message> receiver) throws IOException {
+        this.processId = processId;
+        this.session = System.nanoTime() ^ ((long) processId << 48);
+        this.codec = codec;
+        this.receiver = receiver;
+        this.bufferSize = Math.max(16, Integer.getInteger("causal.multicast.buffer", 4096));
+        this.heartbeatMillis = Math.max(1, Long.getLong("causal.multicast.heartbeatMillis", 100L));
+        this.absentMillis = Math.max(2 * heartbeatMillis, Long.getLong("causal.multicast.absentMillis", 2000L));
+        this.loss = Double.parseDouble(System.getProperty("causal.multicast.loss", "0.0"));
+        this.sentRing = new Process.Message[bufferSize];
+        this.sessions = new long[totalProcesses];
+        this.expected = new long[totalProcesses];
+        this.nackedUpTo = new long[totalProcesses];
+        this.ackSent = new long[totalProcesses];
+        this.ackedUpTo = new long[totalProcesses];
+        this.ackingSession = new long[totalProcesses];
+        this.lastAckMillis = new long[totalProcesses];
+        this.absent = new boolean[totalProcesses];
+        this.held = new Process.Message[totalProcesses][];
+
+        InetAddress address = InetAddress.getByName(System.getProperty("causal.multicast.group", "239.1.2.3"));
+        int port = Integer.getInteger("causal.multicast.port", 7500);
+        NetworkInterface networkInterface = NetworkInterface.getByName(System.getProperty("causal.multicast.interface", "lo"));
+        if (networkInterface == null) {
+            throw new IOException("No network interface " + System.getProperty("causal.multicast.interface", "lo"));
+        }
+        this.group = new InetSocketAddress(address, port);
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true) // Every process of a host binds the group port
+                .setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true)
+                .bind(new InetSocketAddress(port));
+        channel.join(address, networkInterface);
+    }
+
+    public void start() {
+        receiveThread = ThreadMode.current().newThread("multicast-" + processId, this::receiveLoop);
+        receiveThread.start();
+        heartbeatThread = new Thread(this::heartbeatLoop, "multicast-heartbeat-" + processId);
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    /**
+     * Multicasts the message once to the whole group and keeps it for repairs.
+     *
+     * @return false, with nothing sent, when the frame does not fit into a datagram or the repair
+     *         ring has no room for it until a peer catches up
+     */
+    public boolean send(Process.Message message) {
+        ByteBuffer[] frame;
+        try {
+            frame = codec.encode(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (sendBuffer) {
+            long sequence = nextSequence;
+            if (sequence > bufferSize && sequence - bufferSize > slowestAck()) {
+                if (!ringFull) {
+                    ringFull = true;
+                    long now = System.currentTimeMillis();
+                    ringFullReported = now - ringFullReportedMillis >= absentMillis;
+                    if (ringFullReported) {
+                        ringFullReportedMillis = now;
+                        System.out.println("Multicast ring is full of unacknowledged messages, sending over the wires until peers catch up");
+                    }
+                }
+                return false; // Goes over the wires until the slowest peer acknowledges
+            }
+            if (!write(DATA, sequence, frame)) {
+                return false;
+            }
+            if (ringFull) {
+                ringFull = false;
+                if (ringFullReported) {
+                    System.out.println("Multicast ring has room again, multicasting");
+                }
+            }
+            nextSequence++;
+            message.retain();
+            int slot = (int) (sequence % bufferSize);
+            if (sentRing[slot] != null) {
+                sentRing[slot].release();
+            }
+            sentRing[slot] = message;
+            stats.sent(1);
+        }
+        return true;
+    }
+
+    // Lowest sequence every present peer has acknowledged, the caller holds the sendBuffer lock
+    private long slowestAck() {
+        long now = System.currentTimeMillis();
+        long slowest = Long.MAX_VALUE;
+        for (int i = 0; i < ackedUpTo.length; i++) {
+            if (i == processId - 1 || lastAckMillis[i] == 0) {
+                continue; // Never joined, or not yet; a late joiner gets GONE for what it missed
+            }
+            if (now - lastAckMillis[i] > absentMillis) {
+                if (!absent[i]) {
+                    absent[i] = true;
+                    System.out.println("Process " + (i + 1) + " stopped acknowledging multicasts, no longer waiting for it");
+                }
+                continue;
+            }
+            slowest = Math.min(slowest, ackedUpTo[i]);
+        }
+        return slowest;
+    }
+
+    // Put one datagram together in sendBuffer and send it, the caller holds the sendBuffer lock
+    private boolean write(byte type, long sequence, ByteBuffer[] frame) {
+        sendBuffer.clear();
+        sendBuffer.put(type).putInt(processId).putLong(session).putLong(sequence);
+        for (ByteBuffer part : frame) {
+            if (part.remaining() > sendBuffer.remaining()) {
+                return false;
+            }
+            sendBuffer.put(part.duplicate());
+        }
+        sendBuffer.flip();
+        if (loss > 0 && lossRandom.nextDouble() < loss) {
+            return true; // Dropped on purpose
+        }
+        try {
+            stats.sentBytes(channel.send(sendBuffer, group));
+        } catch (ClosedChannelException e) {
+            // Shutting down
+        } catch (IOException e) {
+            // Lost like any datagram, receivers ask for it again
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        while (running) {
+            try {
+                datagram.clear();
+                channel.receive(datagram);
+                datagram.flip();
+                stats.receivedBytes(datagram.remaining());
+                onDatagram(datagram);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // One bad datagram, the sender repairs whatever it carried
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onDatagram(ByteBuffer datagram) throws IOException {
+        if (datagram.remaining() < HEADER_LENGTH + 8) {
+            return;
+        }
+        byte type = datagram.get();
+        int sender = datagram.getInt();
+        long senderSession = datagram.getLong();
+        if (sender < 1 || sender > sessions.length) {
+            return; // Another group on the same address
+        }
+        if (type == NACK) {
+            int target = datagram.getInt();
+            if (target == processId && datagram.remaining() >= 16) {
+                repair(sender, datagram.getLong(), datagram.getLong());
+            }
+            return;
+        }
+        if (type == ACK) {
+            int target = datagram.getInt();
+            if (target == processId && datagram.remaining() >= 16 && datagram.getLong() == session) {
+                long upTo = datagram.getLong();
+                int a = sender - 1;
+                synchronized (sendBuffer) {
+                    if (senderSession != ackingSession[a]) {
+                        ackingSession[a] = senderSession; // Restarted, its old acks say nothing
+                        ackedUpTo[a] = upTo;
+                    } else {
+                        ackedUpTo[a] = Math.max(ackedUpTo[a], upTo);
+                    }
+                    lastAckMillis[a] = System.currentTimeMillis();
+                    absent[a] = false;
+                }
+            }
+            return;
+        }
+        if (sender == processId) {
+            return; // Our own datagrams come back through the loopback
+        }
+        int s = sender - 1;
+        if (senderSession != sessions[s]) {
+            // First datagram of this sender, or it restarted: its sequences begin again
+            sessions[s] = senderSession;
+            expected[s] = 1;
+            nackedUpTo[s] = 0;
+            ackSent[s] = 0;
+            if (held[s] != null) {
+                for (Process.Message message : held[s]) {
+                    if (message != null) {
+                        message.release();
+                    }
+                }
+            }
+            held[s] = new Process.Message[bufferSize];
+        }
+        long sequence = datagram.getLong();
+        if (type == HEARTBEAT) {
+            nackedUpTo[s] = 0; // Repairs may have been lost as well, ask for the whole gap again
+            if (sequence >= expected[s]) {
+                nack(sender, expected[s], sequence + 1);
+            }
+            ack(sender); // Acks are lost like any datagram, repeat the last one
+            return;
+        }
+        if (type == GONE) {
+            if (datagram.remaining() >= 4 && datagram.getInt() == processId && sequence > expected[s]) {
+                System.out.println("Multicast messages " + expected[s] + " to " + (sequence - 1) + " of process "
+                        + sender + " are lost, going on after them");
+                skipTo(s, sequence);
+            }
+            return;
+        }
+        if (type != DATA) {
+            return;
+        }
+        if (sequence < expected[s] || sequence >= expected[s] + bufferSize || held[s][(int) (sequence % bufferSize)] != null) {
+            duplicates++;
+            return;
+        }
+        datagram.position(datagram.position() + 4); // Frame length, the datagram bounds the frame
+        decoded = null;
+        codec.readFrame(datagram, decodeSink);
+        Process.Message message = decoded;
+        if (message == null) {
+            return;
+        }
+        stats.received(1);
+        if (sequence > expected[s]) {
+            held[s][(int) (sequence % bufferSize)] = message;
+            nack(sender, expected[s], sequence);
+            return;
+        }
+        receiver.accept(message);
+        expected[s]++;
+        passHeld(s);
+        if (expected[s] - 1 - ackSent[s] >= bufferSize / 4) {
+            ack(sender);
+        }
+    }
+
+    // Pass on the held messages that follow without a gap
+    private void passHeld(int s) {
+        Process.Message next;
+        while ((next = held[s][(int) (expected[s] % bufferSize)]) != null) {
+            held[s][(int) (expected[s] % bufferSize)] = null;
+            receiver.accept(next);
+            expected[s]++;
+        }
+    }
+
+    // Give up on sequences before first, passing on whatever arrived of them
+    private void skipTo(int s, long first) {
+        while (expected[s] < first) {
+            int slot = (int) (expected[s] % bufferSize);
+            if (held[s][slot] != null) {
+                receiver.accept(held[s][slot]);
+                held[s][slot] = null;
+            }
+            expected[s]++;
+        }
+        passHeld(s);
+        ack(s + 1);
+    }
+
+    // Tell the sender how far we passed its messages on, so its ring may reuse their slots
+    private void ack(int target) {
+        int t = target - 1;
+        ackSent[t] = expected[t] - 1;
+        synchronized (sendBuffer) {
+            sendBuffer.clear();
+            sendBuffer.put(ACK).putInt(processId).putLong(session).putInt(target).putLong(sessions[t]).putLong(ackSent[t]);
+            sendBuffer.flip();
+            try {
+                stats.sentBytes(channel.send(sendBuffer, group));
+            } catch (IOException e) {
+                // The next heartbeat of the sender makes us repeat it
+            }
+        }
+    }
+
+    // Ask the sender for [from, to), once per gap
+    private void nack(int target, long from, long to) {
+        if (to <= nackedUpTo[target - 1]) {
+            return;
+        }
+        nackedUpTo[target - 1] = to;
+        nacks++;
+        synchronized (sendBuffer) {
+            sendBuffer.clear();
+            sendBuffer.put(NACK).putInt(processId).putLong(session).putInt(target).putLong(from).putLong(to);
+            sendBuffer.flip();
+            try {
+                stats.sentBytes(channel.send(sendBuffer, group));
+            } catch (IOException e) {
+                // The next heartbeat makes the receiver ask again
+            }
+        }
+    }
+
+    // Multicast [from, to) again, as far as the ring still holds it; the rest is reported GONE to
+    // the peer that asked, so it does not wait for it forever
+    private void repair(int requester, long from, long to) {
+        synchronized (sendBuffer) {
+            long first = Math.max(from, nextSequence - bufferSize);
+            if (first > from) {
+                System.out.println("Multicast messages " + from + " to " + (first - 1) + " asked for by process "
+                        + requester + " are gone, they cannot be repaired");
+                sendBuffer.clear();
+                sendBuffer.put(GONE).putInt(processId).putLong(session).putLong(first).putInt(requester);
+                sendBuffer.flip();
+                try {
+                    stats.sentBytes(channel.send(sendBuffer, group));
+                } catch (IOException e) {
+                    // The requester asks again on the next heartbeat
+                }
+            }
+            for (long sequence = first; sequence < Math.min(to, nextSequence); sequence++) {
+                try {
+                    write(DATA, sequence, codec.encode(sentRing[(int) (sequence % bufferSize)]));
+                    repairs++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void heartbeatLoop() {
+        while (running) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (sendBuffer) {
+                if (nextSequence == 1) {
+                    continue; // Nothing sent yet
+                }
+                sendBuffer.clear();
+                sendBuffer.put(HEARTBEAT).putInt(processId).putLong(session).putLong(nextSequence - 1);
+                sendBuffer.flip();
+                try {
+                    stats.sentBytes(channel.send(sendBuffer, group));
+                } catch (IOException e) {
+                    // Next time
+                }
+            }
+        }
+    }
+
+    public WireStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "multicast " + group + ": " + stats + ", nacks=" + nacks + " repairs=" + repairs + " duplicates=" + duplicates;
+    }
+
+    public void close() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (heartbeatThread != null) {
+            heartbeatThread.interrupt();
+        }
+        synchronized (sendBuffer) {
+            for (int i = 0; i < sentRing.length; i++) {
+                if (sentRing[i] != null) {
+                    sentRing[i].release();
+                    sentRing[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking transport: a small, fixed set of selector threads serve the listening socket
+ * and every inbound and outbound peer channel. Frames use the same length prefix as the
+ * stream codecs, so reads are reassembled here and handed to the codec one frame at a time.
+ *
+ * Read buffers are direct buffers from {@link BufferPool#shared()} and frames are decoded in
+ * place. Single messages are written with a gathering write of the encoded header and the
+ * payload buffer, so payload bytes are never copied onto the heap in either direction.
+ */
+public class NioTransport implements Closeable {
+
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+    private static final int CONTROL_FRAME_LENGTH = 4 + 4 + 8;
+
+    private final MessageCodec codec;
+    private final Consumer<Process.Message> messageHandler;
+    private final MessageCodec.ControlHandler controlHandler; // Null skips control frames
+    private final EventLoop[] loops;
+    private int nextLoop;
+    private ServerSocketChannel serverChannel;
+    private final Map<String, WireStats> inboundStats = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public NioTransport(MessageCodec codec, Consumer<Process.Message> messageHandler, int loopCount) throws IOException {
+        this(codec, messageHandler, null, loopCount);
+    }
+
+    public NioTransport(MessageCodec codec, Consumer<Process.Message> messageHandler,
+                        MessageCodec.ControlHandler controlHandler, int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required.");
+        }
+        this.codec = codec;
+        this.messageHandler = messageHandler;
+        this.controlHandler = controlHandler;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    // Bind the listening socket, accepted channels are spread over the event loops
+    public void listen(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+        System.out.println("Server started. Listening on port: " + port);
+    }
+
+    // Open an outbound channel to a peer. The connect itself blocks, everything after it does not.
+    public Peer connect(String ip, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip, port));
+        return register(channel);
+    }
+
+    private synchronized EventLoop nextLoop() {
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+
+    // Traffic of every accepted channel, keyed by remote address
+    public Map<String, WireStats> getInboundStats() {
+        return inboundStats;
+    }
+
+    private Peer register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Peer peer = new Peer(channel, nextLoop());
+        peer.loop.execute(() -> {
+            try {
+                peer.key = channel.register(peer.loop.selector, SelectionKey.OP_READ, peer);
+                peer.flush(); // Anything queued before registration
+            } catch (ClosedChannelException e) {
+                peer.close();
+            }
+        });
+        return peer;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+
+    // One connected channel, inbound or outbound
+    public class Peer implements Link {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final WireStats stats = new WireStats();
+        private ByteBuffer readBuffer = BufferPool.shared().acquire(INITIAL_READ_BUFFER); // Event loop only, null once closed
+        private final Consumer<Process.Message> dispatcher = this::dispatch; // One sink for every frame
+        private SelectionKey key;
+        private volatile boolean closed; // Nothing is written any more, queued and later sends are dropped
+
+        private Peer(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Encode on the caller thread, the write itself happens on the event loop
+        public void send(Process.Message message) {
+            ByteBuffer[] frame;
+            try {
+                frame = codec.encode(message);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            stats.sent(1);
+            message.retain(); // The frame may point into the payload until it is written
+            enqueue(new PendingWrite(frame, message));
+        }
+
+        // Same as send, but the messages travel as a single frame
+        public void sendBatch(List<Process.Message> messages) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * messages.size());
+            try {
+                codec.writeBatch(new DataOutputStream(bytes), messages);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            stats.sent(messages.size());
+            enqueue(new PendingWrite(new ByteBuffer[]{ByteBuffer.wrap(bytes.toByteArray())}, null));
+        }
+
+        @Override
+        public void sendControl(byte kind, int processId, long value) {
+            ByteBuffer frame = ByteBuffer.allocate(CONTROL_FRAME_LENGTH);
+            frame.putInt(-kind).putInt(processId).putLong(value).flip();
+            enqueue(new PendingWrite(new ByteBuffer[]{frame}, null));
+        }
+
+        private void enqueue(PendingWrite write) {
+            if (closed) {
+                write.written(); // Never going out, let go of the payload
+                return;
+            }
+            long length = 0;
+            for (ByteBuffer buffer : write.buffers) {
+                length += buffer.remaining();
+            }
+            stats.sentBytes(length);
+            writeQueue.add(write);
+            if (closed) {
+                discardQueued(); // Closed while we were adding, close may have drained before us
+                return;
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public WireStats getStats() {
+            return stats;
+        }
+
+        public InetSocketAddress remoteAddress() {
+            try {
+                return (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        public void close() {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            discardQueued();
+            loop.execute(this::releaseReadBuffer); // After any read in progress on the event loop
+        }
+
+        // Runs on the event loop. Hands the read buffer back to the pool, once.
+        private void releaseReadBuffer() {
+            if (readBuffer != null) {
+                BufferPool.shared().release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        // Releases every queued write, for a peer that will never write again
+        private void discardQueued() {
+            PendingWrite write;
+            while ((write = writeQueue.poll()) != null) {
+                write.written();
+            }
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        // Runs on the event loop. Stops at the first partial write and waits for OP_WRITE.
+        private void flush() {
+            if (key == null || !key.isValid()) {
+                // Registration flushes again; a cancelled key means the peer is closed
+                flushScheduled.set(false);
+                if (closed) {
+                    discardQueued();
+                }
+                return;
+            }
+            try {
+                PendingWrite write;
+                while ((write = writeQueue.peek()) != null) {
+                    channel.write(write.buffers);
+                    if (write.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeQueue.poll();
+                    write.written();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                // A sender may have queued after the last peek but before the flag was cleared
+                if (!writeQueue.isEmpty()) {
+                    scheduleFlush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        // Runs on the event loop. Decodes every complete frame in the buffer.
+        private void read() {
+            if (readBuffer == null) {
+                return; // Closed, the buffer is back in the pool
+            }
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                while (readBuffer.remaining() >= 4) {
+                    int prefix = readBuffer.getInt(readBuffer.position());
+                    if (prefix < 0) {
+                        if (readBuffer.remaining() < CONTROL_FRAME_LENGTH) {
+                            break;
+                        }
+                        readControl(prefix);
+                        continue;
+                    }
+                    int length = MessageCodec.checkFrameLength(prefix);
+                    int frameLength = 4 + length;
+                    if (readBuffer.remaining() < frameLength) {
+                        if (readBuffer.capacity() < frameLength) {
+                            ByteBuffer larger = BufferPool.shared().acquire(frameLength);
+                            larger.put(readBuffer);
+                            larger.flip();
+                            BufferPool.shared().release(readBuffer);
+                            readBuffer = larger;
+                        }
+                        break;
+                    }
+                    // Decode in place, the codec copies payloads out before the buffer is reused
+                    int end = readBuffer.position() + frameLength;
+                    int limit = readBuffer.limit();
+                    readBuffer.position(readBuffer.position() + 4).limit(end);
+                    stats.receivedBytes(frameLength);
+                    stats.received(codec.readFrame(readBuffer, dispatcher));
+                    readBuffer.limit(limit).position(end);
+                }
+                readBuffer.compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        // Same layout as MessageCodec.writeControl: negated kind, process ID, value
+        private void readControl(int prefix) throws IOException {
+            if (prefix < -MessageCodec.CONTROL_LAST) {
+                throw new java.io.StreamCorruptedException("Invalid frame length: " + prefix);
+            }
+            readBuffer.position(readBuffer.position() + 4);
+            int processId = readBuffer.getInt();
+            long value = readBuffer.getLong();
+            stats.receivedBytes(CONTROL_FRAME_LENGTH);
+            if (controlHandler != null) {
+                controlHandler.control((byte) -prefix, processId, value);
+            }
+        }
+
+        private void dispatch(Process.Message message) {
+            try {
+                messageHandler.accept(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    // One queued frame, with the message whose payload it points into
+    private static final class PendingWrite {
+        final ByteBuffer[] buffers;
+        final Process.Message message; // Null when the frame is a private copy
+
+        PendingWrite(ByteBuffer[] buffers, Process.Message message) {
+            this.buffers = buffers;
+            this.message = message;
+        }
+
+        boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void written() {
+            if (message != null) {
+                message.release();
+            }
+        }
+    }
+
+
+    // Selector thread with a task queue for work submitted from other threads
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                    // Tasks queued by the handlers above, e.g. a peer that closed itself
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run(); // Buffer releases for peers closed during shutdown
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Peer peer = (Peer) key.attachment();
+            if (key.isReadable()) {
+                peer.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.flush();
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    System.out.println("Client Socket accepted !");
+                    Peer peer = register(channel);
+                    inboundStats.put(String.valueOf(peer.remoteAddress()), peer.stats);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,59 +1,545 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 
-public class Process {
+public final class Process {
+    // Markers in broadcastCompletions for broadcasts without a future of their own
+    private static final CompletableFuture<Void> ADMITTED = CompletableFuture.completedFuture(null); // Holds a permit
+    private static final CompletableFuture<Void> NOT_ADMITTED = new CompletableFuture<>(); // Replayed, no permit
+
     private final int processID;
     private Wire[] wires; // Connections to other processes
     private int[] vectorClock; // Vector clock for this process
     
-    private int currentRound; // Round Number for this process
+    private int currentRound; // Lowest round not yet delivered here
+    private int sentRounds; // Rounds this process has sent its own message for
+    private final int window; // Rounds that may be in flight at once, from causal.window
     private int totalProcesses;
     private String fileName;
-    private boolean hasMessageSentInCurrentRound;
-    private PriorityQueue<Message> messagesToBroadcast;
+    private DeliveryLog deliveryLog; // Background writer for fileName, keeps disk I/O off the receive path
+    private final ArrayDeque<ByteBuffer> pendingBroadcasts; // Payloads waiting for the window to open, in broadcast order
+    private final ArrayDeque<CompletableFuture<Void>> broadcastCompletions; // One per pending broadcast, completed once sent
+    private final Semaphore submitPermits; // Broadcasts submitted but not sent yet, from causal.submit.capacity
+    private final int submitCapacity;
     
-    private Random randomTimeGenerator = new Random();
-    private final ConcurrentLinkedQueue<Message> messageBuffer; // Thread-safe message buffer
+    private final HoldBackQueue messageBuffer; // Messages waiting for their causal dependencies
 
-    private final Set<Message> receivedMessages; // Set to store received messages
-    private final Set<Message> deliveredMessages; // Set to store delivered messages
+    private final RoundTable roundMessages; // Causally delivered messages per round, until the round is complete
+    private final RoundTable earlyMessages; // Rounds we have not sent our own message for yet
+    private final Message[] deliveryOrder; // The round being delivered, reused for every round
+    private final List<Message> deliveredView; // deliveryOrder as handed to the delivery listener
+    private final boolean logRounds; // Print a line per completed round, from causal.log.rounds
+    private final StabilityTracker stability; // Delivered messages, kept only until every process has them
+    private final ClockCompressor clockCompressor; // Rebuilds diff-encoded clocks, and produces them when enabled
+    private boolean compressClocks; // Turned off again with multicast, see startMulticast
+    private final ProtocolLoop protocolLoop; // Only thread that touches the clock, hold-back queue and round state
+    private volatile Consumer<List<Message>> deliveryListener; // Observer of delivered rounds, used by the simulator
+    private final ProcessMetrics metrics;
+    private final Map<String, WireStats> inboundStats = Collections.synchronizedMap(new LinkedHashMap<>()); // Accepted sockets
 
     // Server variables
     private ServerSocket serverSocket;
     private ExecutorService serverExecutor;
     private int serverPort;
+    private final MessageCodec codec; // Frame format shared by every connection of this process
+    private NioTransport nioTransport; // Selector-based transport, null when using blocking sockets
+    private SharedMemoryTransport sharedMemory; // Ring files to peers on this host, null unless causal.shm
+    private final BatchPolicy batchPolicy; // Write coalescing per wire, null when disabled
+
+    // Crash recovery, all null or unused unless a write-ahead log is open
+    private WriteAheadLog writeAheadLog;
+    private long snapshotEvery;
+    private boolean replaying; // Rebuilding state from the log, nothing is written out
+    // Delivery log watermark: rounds before writtenRounds were in the file when it was
+    // writtenLength bytes long, -1 until known; recovery writes the later rounds again
+    private int writtenRounds;
+    private long writtenLength = -1;
+    private int firstLoggedRound = -1; // Round of the first lines this run handed to the delivery log
+    private long loggedRounds; // Rounds this run handed to the delivery log
+    private final long[] logProgress = new long[2];
+    private List<Message[]> recoveredRounds; // Completed while replaying, from recoveredFrom on
+    private int recoveredFrom;
+    private final MessageCodec logCodec = new BinaryMessageCodec();
+
+    // Reliable delivery on blocking sockets, from causal.reliable
+    private final boolean reliable;
+    private final long[] receivedUpTo; // Highest contiguous sequence taken from each sender, see ReliableReceiver
+    private final DisseminationTree tree; // Relays broadcasts along a tree per source, null for full mesh
+    private long broadcastWrites; // Messages handed to wires for our own broadcasts, relays excluded
+    private MulticastTransport multicast; // One datagram per broadcast instead of a write per wire, from causal.multicast
+
+    // Credit-based flow control, from causal.credits; arrays are indexed by process ID - 1
+    private int credits; // Our messages a peer may have undelivered before we hold back, 0 for no limit
+    private final int creditGrantEvery; // Deliveries per peer between explicit grants
+    private final long[] creditGranted; // How many of our messages each peer has delivered, as far as we know
+    private final int[] creditSent; // Delivered count each peer last heard from us, by grant or piggybacked clock
+
+    // Independent causal groups sharing our wires, from causal.channels; see openChannels
+    private final int channel; // Our channel number, 0 for the main process
+    private final boolean ownsLoop; // False for channel processes, which run on a shard loop
+    private Process[] channels; // Indexed by channel number, slot 0 unused; null without channels
+    private final Map<String, Process> channelsByName = new LinkedHashMap<>();
+    private ProtocolLoop[] shardLoops;
 
     public Process(int id, int port, String[] ips, int[] ports) {
-        this.processID = id;
-        // Check if ips and ports arrays have the same length
-        if (ips.length != ports.length) {
-            throw new IllegalArgumentException("The lengths of IPs and ports arrays must be the same.");
+        this(id, groupSize(ips, ports), openDeliveryLog("process_" + id + ".txt"));
+
+        this.serverPort     = port;
+        String channelNames = System.getProperty("causal.channels", "");
+        if (!channelNames.isEmpty()) {
+            openChannels(channelNames.split(","),
+                    Integer.getInteger("causal.channel.shards", Runtime.getRuntime().availableProcessors()));
+        }
+        boolean nio = "nio".equalsIgnoreCase(System.getProperty("causal.transport", "socket"));
+        if (nio && credits > 0) {
+            // Grants go to the peer a wire leads to, which only a handshake tells; every peer runs
+            // the same transport, so the whole group drops credits alike, before anything is replayed
+            System.out.println("Credit-based flow control needs identified peers, the nio transport has none; credits are off");
+            disableCredits();
+        }
+        if (Boolean.getBoolean("causal.wal")) {
+            try {
+                openWriteAheadLog(Paths.get(System.getProperty("causal.wal.dir", "wal_" + id)),
+                        Long.getLong("causal.wal.snapshotEvery", 10_000L));
+            } catch (IOException e) {
+                System.out.println("Error opening write-ahead log: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        resumeReceivedSequences();
+        // Receivers start after recovery, so replay is the only writer until it is done and
+        // replayed broadcasts go nowhere
+        if (Boolean.getBoolean("causal.multicast")) {
+            startMulticast();
+        }
+        if (Boolean.getBoolean("causal.shm")) {
+            startSharedMemory();
+        }
+        if (nio) {
+            startNioTransport(Integer.getInteger("causal.nio.loops", 1));
+        } else {
+            this.serverExecutor = ThreadMode.current().newExecutor();
+            startServer();
         }
-        this.totalProcesses  = ips.length + 1; // Including this process
+        metrics.start();
+
+        confirmAndEstablishConnections(ips, ports);
+    }
+
+    /**
+     * Protocol state only: no server and no peer connections, wires stay empty.
+     * Used by the benchmark module, which also drives the package-private hot-path methods.
+     *
+     * @param deliveryLog where delivered rounds are written, or null to discard them
+     */
+    Process(int id, int totalProcesses, DeliveryLog deliveryLog) {
+        this(id, totalProcesses, deliveryLog, 0, null);
+    }
+
+    // A channel process runs its protocol on the shared loop, which routes messages by channel
+    private Process(int id, int totalProcesses, DeliveryLog deliveryLog, int channel, ProtocolLoop sharedLoop) {
+        this.processID = id;
+        this.channel   = channel;
+        this.ownsLoop  = sharedLoop == null;
+        this.totalProcesses  = totalProcesses; // Including this process
         this.vectorClock    = new int[totalProcesses]; // Initialize vector clock with zeros for all processes
         this.wires          = new Wire[totalProcesses - 1]; // Wires for connections to other processes, excluding self
         
         this.currentRound   = 0;
+        this.sentRounds     = 0;
+        this.window         = Math.max(1, Integer.getInteger("causal.window", 1));
         this.fileName       = "process_" + id + ".txt";
-        this.hasMessageSentInCurrentRound = false;
-        this.messagesToBroadcast = new PriorityQueue<>(Comparator.comparingInt(Message::getRound));
+        this.deliveryLog    = deliveryLog;
+        this.pendingBroadcasts = new ArrayDeque<>();
+        this.broadcastCompletions = new ArrayDeque<>();
+        this.submitCapacity = Math.max(1, Integer.getInteger("causal.submit.capacity", 1024));
+        this.submitPermits  = new Semaphore(submitCapacity);
+        this.credits        = Math.max(0, Integer.getInteger("causal.credits", 1024));
+        this.creditGrantEvery = Math.max(1, credits / 2);
+        this.creditGranted  = new long[totalProcesses];
+        this.creditSent     = new int[totalProcesses];
+        this.codec          = MessageCodec.fromSystemProperties();
+        this.batchPolicy    = channel == 0 ? BatchPolicy.fromSystemProperties() : null; // Main wires batch for channels
 
-        this.serverExecutor = Executors.newSingleThreadExecutor();
-        this.serverPort     = port;
-        startServer();
+        // Receive-side state must exist before the server can hand us messages
+        this.messageBuffer     = new HoldBackQueue(vectorClock); // Initialize the message buffer
+        this.roundMessages     = new RoundTable(totalProcesses, window + 1);
+        this.earlyMessages     = new RoundTable(totalProcesses, window);
+        this.deliveryOrder     = new Message[totalProcesses];
+        this.deliveredView     = Collections.unmodifiableList(Arrays.asList(deliveryOrder));
+        this.logRounds         = Boolean.parseBoolean(System.getProperty("causal.log.rounds", "true"));
+        this.stability         = new StabilityTracker(id, totalProcesses);
+        this.clockCompressor   = new ClockCompressor(totalProcesses, totalProcesses - 1);
+        this.compressClocks    = "compressed".equalsIgnoreCase(System.getProperty("causal.clock", "full"));
+        this.protocolLoop      = ownsLoop ? new ProtocolLoop("protocol-" + id, this::onReceivedMessage) : sharedLoop;
+        this.metrics           = new ProcessMetrics(this);
+        this.reliable          = Boolean.getBoolean("causal.reliable");
+        this.receivedUpTo      = new long[totalProcesses];
+        DisseminationTree configuredTree = DisseminationTree.fromSystemProperties(id, totalProcesses);
+        if (configuredTree != null && reliable) {
+            // Relayed messages of many sources share a link, which breaks per-link sequences
+            System.out.println("Reliable delivery needs full mesh, ignoring tree dissemination");
+            configuredTree = null;
+        }
+        this.tree              = configuredTree;
+        if (ownsLoop) {
+            protocolLoop.start();
+        }
+    }
 
-        this.messageBuffer     = new ConcurrentLinkedQueue<>(); // Initialize the message buffer
-        this.receivedMessages  = new HashSet<>(); // Initialize the receivedMessages set
-        this.deliveredMessages = new HashSet<>(); // Initialize the deliveredMessages set
+    /**
+     * Opens independent causal groups next to the main one, numbered 1, 2, ... in the order of
+     * names. Each channel is a process of its own, with its own clock, hold-back queue, rounds and
+     * delivery log (process_ID_NAME.txt), but its messages travel over our wires, tagged with the
+     * channel number. There is no causal order between channels.
+     *
+     * Channels are spread over shardCount protocol loops, channel c on loop c % shardCount, so
+     * channels on different loops deliver in parallel. Every peer must open the same channels in
+     * the same order, before any connection exists. Channels are not written to the
+     * write-ahead log and are not available with reliable delivery.
+     */
+    void openChannels(String[] names, int shardCount) {
+        if (reliable) {
+            // Retransmission works on sequences of one group per link
+            System.out.println("Reliable delivery needs a single group, ignoring channels");
+            return;
+        }
+        this.shardLoops = new ProtocolLoop[Math.max(1, Math.min(shardCount, names.length))];
+        this.channels = new Process[names.length + 1];
+        for (int k = 0; k < shardLoops.length; k++) {
+            shardLoops[k] = new ProtocolLoop("channels-" + processID + "-" + k,
+                    message -> channels[message.getChannel()].onReceivedMessage(message));
+        }
+        for (int c = 1; c <= names.length; c++) {
+            String name = names[c - 1].trim();
+            DeliveryLog log = deliveryLog != null ? openDeliveryLog("process_" + processID + "_" + name + ".txt") : null;
+            Process process = new Process(processID, totalProcesses, log, c, shardLoops[c % shardLoops.length]);
+            for (int i = 0; i < wires.length; i++) {
+                process.wires[i] = new Wire(new ChannelLink(this, i, c));
+            }
+            channels[c] = process;
+            channelsByName.put(name, process);
+        }
+        for (ProtocolLoop loop : shardLoops) {
+            loop.start();
+        }
+    }
 
-        confirmAndEstablishConnections(ips, ports);
+    // The process of a channel opened by name, for broadcasting and listening on it
+    public Process channel(String name) {
+        Process process = channelsByName.get(name);
+        if (process == null) {
+            throw new IllegalArgumentException("No channel named " + name);
+        }
+        return process;
+    }
+
+    public Set<String> getChannelNames() {
+        return Collections.unmodifiableSet(channelsByName.keySet());
+    }
+
+    // Our wire in the slot, null until connected; channel links send through it
+    Wire getWire(int index) {
+        return wires[index];
+    }
+
+    private void disableCredits() {
+        credits = 0;
+        if (channels != null) {
+            for (int c = 1; c < channels.length; c++) {
+                channels[c].disableCredits();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the state recorded in the log directory, if any, then logs every broadcast and
+     * received message from now on and snapshots the state every snapshotEvery records.
+     * Must run before any connection exists, so replayed sends go nowhere.
+     *
+     * @return the number of log records replayed, the snapshot not included
+     */
+    long openWriteAheadLog(Path directory, long snapshotEvery) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(directory, Integer.getInteger("causal.wal.segmentBytes", 16 << 20));
+        long start = System.nanoTime();
+        long replayed;
+        replaying = true;
+        recoveredRounds = new ArrayList<>();
+        try {
+            replayed = log.recover(this::replay);
+        } finally {
+            replaying = false;
+        }
+        writeRecoveredRounds();
+        if (replayed > 0 || currentRound > 0) {
+            System.out.printf("Recovered round %d from %s, replayed %d records in %.1f ms%n",
+                    currentRound, directory, replayed, (System.nanoTime() - start) / 1e6);
+        }
+        this.writeAheadLog = log;
+        this.snapshotEvery = snapshotEvery;
+        if (writtenLength < 0 && deliveryLog != null) {
+            // No watermark yet, everything so far counts as written
+            deliveryLog.readWritten(logProgress);
+            writtenRounds = currentRound;
+            writtenLength = logProgress[1];
+            log.appendWritten(writtenRounds, writtenLength);
+        }
+        return replayed;
+    }
+
+    // Rounds the replay completed beyond the watermark never made it into the file, or not
+    // completely: cut the file back to the watermark and write them again
+    private void writeRecoveredRounds() throws IOException {
+        List<Message[]> rounds = recoveredRounds;
+        recoveredRounds = null;
+        boolean rewrite = deliveryLog != null && writtenLength >= 0;
+        if (rewrite) {
+            deliveryLog.truncate(writtenLength);
+        }
+        for (int k = 0; k < rounds.size(); k++) {
+            if (rewrite && recoveredFrom + k >= writtenRounds) {
+                queueRound(recoveredFrom + k, rounds.get(k));
+            } else {
+                for (Message message : rounds.get(k)) {
+                    message.release();
+                }
+            }
+        }
+        if (rewrite && !rounds.isEmpty() && recoveredFrom + rounds.size() > writtenRounds) {
+            System.out.printf("Writing rounds %d to %d to the delivery log again%n",
+                    Math.max(writtenRounds, recoveredFrom), recoveredFrom + rounds.size() - 1);
+        }
+    }
+
+    private void replay(byte type, ByteBuffer body) throws IOException {
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        switch (type) {
+            case WriteAheadLog.SNAPSHOT:
+                restoreSnapshot(new DataInputStream(new ByteArrayInputStream(bytes)));
+                break;
+            case WriteAheadLog.BROADCAST:
+                sendOrQueue(ByteBuffer.wrap(bytes));
+                break;
+            case WriteAheadLog.CREDIT:
+                ByteBuffer credit = ByteBuffer.wrap(bytes);
+                onCredit(credit.getInt(), credit.getLong());
+                break;
+            case WriteAheadLog.WRITTEN:
+                ByteBuffer written = ByteBuffer.wrap(bytes);
+                writtenRounds = written.getInt();
+                writtenLength = written.getLong();
+                break;
+            case WriteAheadLog.RECEIVED:
+                logCodec.readFrame(new DataInputStream(new ByteArrayInputStream(bytes)), this::onReceivedMessage);
+                break;
+            default:
+                throw new IOException("Unknown log record type: " + type);
+        }
+    }
+
+    // After recovery every message in the clock, hold-back queue or early rounds was received already
+    private void resumeReceivedSequences() {
+        synchronized (receivedUpTo) {
+            for (int i = 0; i < totalProcesses; i++) {
+                receivedUpTo[i] = vectorClock[i];
+            }
+            List<Message> held = new ArrayList<>(messageBuffer.messages());
+            earlyMessages.addAllTo(held);
+            for (Message message : held) {
+                int sender = message.getSenderId() - 1;
+                receivedUpTo[sender] = Math.max(receivedUpTo[sender], message.getSequence());
+            }
+        }
+    }
+
+    // Log an input before it changes any state
+    private void logBroadcast(ByteBuffer message) {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.appendBroadcast(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void logCredit(int processId, long delivered) {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.appendCredit(processId, delivered);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void logReceived(Message message) {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(128);
+            logCodec.writeFrame(new DataOutputStream(frame), message);
+            writeAheadLog.appendReceived(frame.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Log the delivery log's progress once it has written more rounds
+    private void logWritten() {
+        if (writeAheadLog == null || firstLoggedRound < 0) {
+            return;
+        }
+        deliveryLog.readWritten(logProgress);
+        int rounds = firstLoggedRound + (int) logProgress[0];
+        if (rounds <= writtenRounds) {
+            return;
+        }
+        writtenRounds = rounds;
+        writtenLength = logProgress[1];
+        try {
+            writeAheadLog.appendWritten(writtenRounds, writtenLength);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // After an input is fully handled, so the snapshot covers exactly the records logged so far
+    private void snapshotIfDue() {
+        logWritten();
+        if (writeAheadLog == null || writeAheadLog.getRecordsSinceSnapshot() < snapshotEvery) {
+            return;
+        }
+        if (firstLoggedRound >= 0) {
+            // The snapshot holds no delivered rounds, so all of them must be in the file first
+            deliveryLog.awaitWritten(loggedRounds);
+            logWritten();
+        }
+        try {
+            ByteArrayOutputStream state = new ByteArrayOutputStream(4096);
+            writeSnapshot(new DataOutputStream(state));
+            writeAheadLog.snapshot(ByteBuffer.wrap(state.toByteArray()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(totalProcesses);
+        for (int value : vectorClock) {
+            out.writeInt(value);
+        }
+        out.writeInt(currentRound);
+        out.writeInt(sentRounds);
+        out.writeInt(pendingBroadcasts.size());
+        for (ByteBuffer content : pendingBroadcasts) {
+            byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        List<Message> waiting = new ArrayList<>();
+        roundMessages.addAllTo(waiting);
+        writeMessages(out, waiting);
+        waiting.clear();
+        earlyMessages.addAllTo(waiting);
+        writeMessages(out, waiting);
+        writeMessages(out, messageBuffer.messages());
+        stability.writeTo(out, logCodec);
+        for (long granted : creditGranted) {
+            out.writeLong(granted);
+        }
+        out.writeInt(writtenRounds);
+        out.writeLong(writtenLength);
+        clockCompressor.writeTo(out);
+    }
+
+    private void restoreSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != totalProcesses) {
+            throw new IOException("Snapshot was taken with a different group size");
+        }
+        for (int i = 0; i < vectorClock.length; i++) {
+            vectorClock[i] = in.readInt(); // In place, the hold-back queue shares this array
+        }
+        currentRound = in.readInt();
+        sentRounds = in.readInt();
+        int pending = in.readInt();
+        for (int i = 0; i < pending; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            pendingBroadcasts.add(ByteBuffer.wrap(bytes));
+            broadcastCompletions.add(NOT_ADMITTED);
+        }
+        for (Message message : readMessages(in)) {
+            addToRound(message);
+        }
+        for (Message message : readMessages(in)) {
+            earlyMessages.add(message);
+        }
+        for (Message message : readMessages(in)) {
+            messageBuffer.add(message);
+        }
+        stability.readFrom(in, logCodec);
+        for (int i = 0; i < totalProcesses; i++) {
+            creditGranted[i] = in.readLong(); // The grants that got us this far are not sent again
+        }
+        writtenRounds = in.readInt();
+        writtenLength = in.readLong();
+        clockCompressor.readFrom(in); // Which clock entries our peers and we already know from each other
+    }
+
+    private void writeMessages(DataOutputStream out, List<Message> messages) throws IOException {
+        out.writeInt(messages.size());
+        for (Message message : messages) {
+            logCodec.writeFrame(out, message);
+        }
+    }
+
+    private List<Message> readMessages(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            logCodec.readFrame(in, messages::add);
+        }
+        return messages;
+    }
+
+    private static int groupSize(String[] ips, int[] ports) {
+        // Check if ips and ports arrays have the same length
+        if (ips.length != ports.length) {
+            throw new IllegalArgumentException("The lengths of IPs and ports arrays must be the same.");
+        }
+        return ips.length + 1;
+    }
+
+    private static DeliveryLog openDeliveryLog(String fileName) {
+        try {
+            return DeliveryLog.open(fileName);
+        } catch (IOException e) {
+            System.out.println("Error opening delivery log: " + e.getMessage());
+            return null;
+        }
     }
 
     private void confirmAndEstablishConnections(String[] ips, int[] ports) {
+        if (Bootstrap.isAutomatic()) {
+            bootstrapConnections(ips, ports);
+            return;
+        }
         Scanner scanner = new Scanner(System.in); // Create a Scanner object
         System.out.println("Do you want to start establishing connections? (yes/no)");
         String userResponse = scanner.nextLine(); // Read user response
@@ -72,9 +558,122 @@ public class Process {
     }
 
 
+    // Connect to all peers in parallel, retrying with backoff, without asking first; throws an
+    // IllegalStateException when the quorum is not reached or a peer is not a member of the group
+    private void bootstrapConnections(String[] ips, int[] ports) {
+        long start = System.nanoTime();
+        try {
+            int connected = Bootstrap.fromSystemProperties().connectAll(ips.length, i -> connectPeer(i, ips[i], ports[i]));
+            System.out.printf("Connected to %d of %d peers in %.1f ms%n", connected, ips.length,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One bootstrap attempt, runs on the peer's bootstrap thread
+    private void connectPeer(int index, String ip, int port) throws IOException {
+        if (nioTransport != null) {
+            // No handshake on the selector transport, peers keep their command line order
+            Wire wire = new Wire(nioTransport.connect(ip, port));
+            installWire(index, wire, ip, port);
+            return;
+        }
+        Wire wire = new Wire(new Socket(ip, port), codec);
+        int peerId;
+        try {
+            peerId = wire.identify(processID, 5000);
+        } catch (IOException e) {
+            wire.close();
+            throw e;
+        }
+        if (peerId < 1 || peerId > totalProcesses || peerId == processID) {
+            wire.close();
+            throw new IllegalStateException(ip + ":" + port + " identified as process " + peerId
+                    + ", expected another member of a group of " + totalProcesses);
+        }
+        installWire(wireIndexOf(peerId), wire, ip, port);
+    }
+
+    // Put an identified wire in its peer's slot, so wire k always leads to the k-th other process
+    private void installWire(int slot, Wire wire, String ip, int port) {
+        synchronized (wires) {
+            if (wires[slot] != null) {
+                System.out.println("Already connected to the peer at " + ip + ":" + port + ", closing the new connection");
+                wire.close();
+                return;
+            }
+            wire = viaSharedMemory(slot, wire, ip, port);
+            prepareWire(wire, ip, port);
+            if (batchPolicy != null) {
+                wire.enableBatching(batchPolicy);
+            }
+            wires[slot] = wire;
+        }
+    }
+
+    /**
+     * The wire for a peer on this host, once it is connected: a ring in shared memory, with the
+     * connected wire kept for frames too large for the ring. Other peers, and peers without
+     * shared memory, keep the connected wire.
+     */
+    private Wire viaSharedMemory(int slot, Wire connected, String ip, int port) {
+        if (sharedMemory == null || !SharedMemoryTransport.isLocal(ip)) {
+            return connected;
+        }
+        int peerId = peerIdOf(slot);
+        SharedMemoryTransport.Peer ring = sharedMemory.connect(peerId, port, connected);
+        if (ring == null) {
+            return connected;
+        }
+        System.out.println("Using shared memory for process " + peerId + " at " + ip + ":" + port);
+        return new Wire(ring);
+    }
+
+    // Inbound rings exist before the server accepts, so a peer that got through finds ours
+    private void startSharedMemory() {
+        if (reliable) {
+            System.out.println("Shared memory rings do not lose messages, reliable delivery stays on TCP");
+            return;
+        }
+        try {
+            sharedMemory = new SharedMemoryTransport(processID, serverPort, totalProcesses, codec,
+                    this::handleReceivedMessage, this::handleControl);
+        } catch (IOException e) {
+            System.out.println("Error opening shared memory rings: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Per-peer options every new outbound wire gets
+    private void prepareWire(Wire wire, String ip, int port) {
+        DelayInjector delay = DelayInjector.forPeer(ip, port);
+        if (delay != null) {
+            wire.enableDelay(delay);
+        }
+        if (reliable && nioTransport == null) {
+            wire.enableReliability(processID, Integer.getInteger("causal.reliable.buffer", 4096));
+        }
+    }
+
     private void tryAddUniqueWire(String ip, int port) {
         System.out.println("Creating Wire for IP: " + ip);
-        Wire newWire = new Wire(ip, port); // Assume Wire can be constructed with IP and port directly
+        Wire newWire = nioTransport != null
+                ? new Wire(nioTransport, ip, port)
+                : new Wire(ip, port, codec); // Assume Wire can be constructed with IP and port directly
+        if (nioTransport == null && newWire.remoteAddress() != null) {
+            // Slots follow the ID the peer reports, like the automatic bootstrap, so grants reach it
+            try {
+                int peerId = newWire.identify(processID, 5000);
+                if (peerId >= 1 && peerId <= totalProcesses && peerId != processID) {
+                    installWire(wireIndexOf(peerId), newWire, ip, port);
+                    return;
+                }
+                System.out.println(ip + ":" + port + " identified as process " + peerId + ", not a peer of this group");
+            } catch (IOException e) {
+                System.out.println("Peer at " + ip + ":" + port + " did not identify itself: " + e.getMessage());
+            }
+        }
         // Synchronize access to the wires array to ensure thread safety
 
         boolean exists = false;
@@ -86,40 +685,83 @@ public class Process {
             }
         }
         if (!exists) {
-            // Add newWire to the first null position in the wires array
             System.out.println("Wire did not exist and Created...");
-            for (int i = 0; i < wires.length; i++) {
-                if (wires[i] == null) {
-                    wires[i] = newWire;
+            for (int slot = 0; slot < wires.length; slot++) {
+                if (wires[slot] == null) {
+                    newWire = viaSharedMemory(slot, newWire, ip, port); // addWire takes the same slot
                     break;
                 }
             }
+            prepareWire(newWire, ip, port);
+            addWire(newWire);
+        }
+    }
+
+    // Add a wire to the first null position in the wires array
+    private void addWire(Wire wire) {
+        if (batchPolicy != null) {
+            wire.enableBatching(batchPolicy);
+        }
+        for (int i = 0; i < wires.length; i++) {
+            if (wires[i] == null) {
+                wires[i] = wire;
+                return;
+            }
+        }
+        System.out.println("All wires are already connected, ignoring the new one.");
+    }
+
+    /**
+     * Connect a detached process to a peer over a link that delivers straight into the peer's
+     * {@link #handleReceivedMessage}. Used by the in-process cluster simulator.
+     */
+    void connect(Link link) {
+        Wire wire = new Wire(link);
+        for (int slot = 0; slot < wires.length; slot++) {
+            if (wires[slot] == null) {
+                wire.identifiedAs(peerIdOf(slot)); // Peers are connected in ID order
+                break;
+            }
         }
+        addWire(wire);
     }
 
 
     private void handleClientSocket(Socket clientSocket) throws IOException {
-        // First, initialize the ObjectOutputStream
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-        // Flush the stream to ensure the header is sent to the client
-        objectOutputStream.flush();
-
-        // Now, initialize the ObjectInputStream
-        ObjectInputStream objectInputStream = new ObjectInputStream(clientSocket.getInputStream());
+        // Inbound connections carry messages in, frames are decoded with the process codec
+        WireStats stats = new WireStats();
+        inboundStats.put(String.valueOf(clientSocket.getRemoteSocketAddress()), stats);
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(stats.countReceived(clientSocket.getInputStream())));
+        // Acks for reliable senders go back on the same socket, other senders never send a HELLO
+        ReliableReceiver receiver = new ReliableReceiver(processID, receivedUpTo,
+                Integer.getInteger("causal.reliable.ackEvery", 32), clientSocket,
+                new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream())), this::handleReceivedMessage);
+        // Credit grants of the peer share the stream with its messages
+        MessageCodec.ControlHandler control = (kind, processId, value) -> {
+            if (kind == MessageCodec.CONTROL_CREDIT || kind == MessageCodec.CONTROL_FENCE) {
+                handleControl(kind, processId, value);
+            } else {
+                receiver.control(kind, processId, value);
+            }
+        };
 
         while (!clientSocket.isClosed()) {
-            Message receivedMessage = null;
             try {
-                //randomWait();
-                receivedMessage = (Message) objectInputStream.readObject();
-                if (receivedMessage != null) {
-                    handleReceivedMessage(receivedMessage);
+                stats.received(codec.readFrame(inputStream, receiver, control));
+                if (inputStream.available() == 0) {
+                    receiver.idle();
                 }
             } catch (EOFException e) {
                 // End of stream reached, close the connection
                 break;
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace(); // Handle exceptions appropriately, but continue listening
+            } catch (StreamCorruptedException e) {
+                // Frame boundaries are lost, nothing after this point can be trusted
+                e.printStackTrace();
+                clientSocket.close();
+            } catch (IOException e) {
+                // A reset connection keeps failing, a reliable sender reconnects on its own
+                e.printStackTrace();
+                clientSocket.close();
             }
         }
     }
@@ -134,8 +776,8 @@ public class Process {
                 while (!Thread.currentThread().isInterrupted()) {
                     Socket clientSocket = serverSocket.accept();
                     System.out.println("Client Socket accepted !");
-                    // Handle each client connection in a new thread
-                    new Thread(() -> {
+                    // Handle each client connection in a new thread, virtual when enabled
+                    ThreadMode.current().newThread("client-" + clientSocket.getPort(), () -> {
                         try {
                             handleClientSocket(clientSocket);
                         } catch (IOException e) {
@@ -150,25 +792,304 @@ public class Process {
         });
     }
 
+    // Serve all peer channels from a few selector threads instead of a thread per socket
+    private void startNioTransport(int loopCount) {
+        try {
+            this.nioTransport = new NioTransport(codec, this::handleReceivedMessage, this::handleControl, loopCount);
+            nioTransport.listen(serverPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
 
-    // Broadcast a message with the current vector clock
-    public void broadcastMessage(String message) {
-        if (!hasMessageSentInCurrentRound) {
-            randomWait();
-            vectorClock[processID - 1]++; // Increment own position in vector clock
-            Message broadcastMessage = new Message(processID, message, vectorClock.clone(), currentRound);
-            hasMessageSentInCurrentRound = true;
-            receivedMessages.add(broadcastMessage);
-    
-            for (Wire wire : wires) {
-                wire.sendMessage(broadcastMessage);
+    /**
+     * Sends our broadcasts as multicast datagrams from now on, received ones go to
+     * handleReceivedMessage like those from the wires. Peer connections stay for credits and for
+     * messages too large for a datagram. Not available with reliable delivery or tree
+     * dissemination, which have their own repair and relay paths. Runs after the write-ahead
+     * log is recovered, like the other receivers.
+     */
+    void startMulticast() {
+        if (reliable || tree != null) {
+            System.out.println("Multicast does not combine with reliable delivery or tree dissemination, ignoring it");
+            return;
+        }
+        try {
+            multicast = new MulticastTransport(processID, totalProcesses, codec, this::handleReceivedMessage);
+            multicast.start();
+            if (compressClocks) {
+                // Broadcasts the ring refuses go over TCP and may arrive before earlier datagrams
+                System.out.println("Compressed clocks need FIFO channels, multicast has none; sending full clocks");
+            }
+            compressClocks = false;
+            if (channels != null) {
+                for (int c = 1; c < channels.length; c++) {
+                    channels[c].multicast = multicast; // One sequence for all our channels, messages carry their channel
+                    channels[c].compressClocks = false;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error opening multicast transport: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Broadcast a message with the current vector clock, the send itself happens on the protocol loop
+    public void broadcastMessage(String message) throws InterruptedException {
+        broadcastMessage(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Broadcasts the bytes between the payload's position and limit without copying them. The
+     * buffer stays owned by the caller and must not change afterwards, it is kept for resends and
+     * written to the delivery log from where it is.
+     *
+     * At most causal.submit.capacity broadcasts (default 1024) may be submitted but not yet sent;
+     * beyond that this blocks until the window and the peers' credits let older ones go out.
+     */
+    public void broadcastMessage(ByteBuffer payload) throws InterruptedException {
+        submitPermits.acquire();
+        submit(payload, ADMITTED);
+    }
+
+    public boolean tryBroadcast(String message) {
+        return tryBroadcast(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Same as broadcastMessage, but gives up at once when the submission queue is full
+    public boolean tryBroadcast(ByteBuffer payload) {
+        if (!submitPermits.tryAcquire()) {
+            return false;
+        }
+        submit(payload, ADMITTED);
+        return true;
+    }
+
+    public CompletableFuture<Void> broadcastAsync(String message) {
+        return broadcastAsync(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Same as broadcastMessage without blocking: the future completes once the message has been
+     * handed to the wires, or fails with a RejectedExecutionException when the submission queue is
+     * full. Dependent actions run on the protocol loop unless an async variant is used.
+     */
+    public CompletableFuture<Void> broadcastAsync(ByteBuffer payload) {
+        if (!submitPermits.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Broadcast queue is full"));
+        }
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        submit(payload, sent);
+        return sent;
+    }
+
+    // Broadcasts submitted but not sent yet
+    public int getPendingBroadcastCount() {
+        return submitCapacity - submitPermits.availablePermits();
+    }
+
+    // Events waiting for the protocol loop, received messages included
+    int getMailboxBacklog() {
+        return protocolLoop.backlog();
+    }
+
+    private void submit(ByteBuffer payload, CompletableFuture<Void> completion) {
+        protocolLoop.execute(() -> queueBroadcast(payload, completion));
+    }
+
+    // Replayed and benchmark broadcasts, these hold no submission permit
+    void sendOrQueue(String message) {
+        sendOrQueue(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void sendOrQueue(ByteBuffer message) {
+        queueBroadcast(message, NOT_ADMITTED);
+    }
+
+    private void queueBroadcast(ByteBuffer message, CompletableFuture<Void> completion) {
+        logBroadcast(message);
+        pendingBroadcasts.add(message);
+        broadcastCompletions.add(completion);
+        advance();
+        snapshotIfDue();
+    }
+
+    /**
+     * Runs everything the last event made possible. Sends go out while fewer than window rounds
+     * are in flight and every peer has credit left, each send releases the messages of that round
+     * that arrived early, and complete rounds are written out in order, which may open the window
+     * again.
+     */
+    private void advance() {
+        boolean progress;
+        do {
+            progress = false;
+            while (!pendingBroadcasts.isEmpty() && sentRounds < currentRound + window && hasCredit()) {
+                send(pendingBroadcasts.poll());
+                broadcastSent(broadcastCompletions.poll());
+                progress = true;
+            }
+            while (isRoundComplete(currentRound)) {
+                completeRound();
+                progress = true;
+            }
+        } while (progress);
+    }
+
+    // Every peer has delivered enough of our messages to take one more. Unconnected peers count
+    // too, so the outcome only depends on logged inputs and replays the same.
+    private boolean hasCredit() {
+        if (credits == 0) {
+            return true;
+        }
+        long next = vectorClock[processID - 1] + 1L;
+        for (int i = 0; i < totalProcesses; i++) {
+            if (i != processID - 1 && next > creditGranted[i] + credits) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void broadcastSent(CompletableFuture<Void> completion) {
+        if (completion == NOT_ADMITTED) {
+            return;
+        }
+        submitPermits.release();
+        if (completion != ADMITTED) {
+            completion.complete(null);
+        }
+    }
+
+    private void send(ByteBuffer message) {
+        vectorClock[processID - 1]++; // Increment own position in vector clock
+        clockCompressor.touched(processID - 1);
+        Message broadcastMessage = new Message(processID, channel, message, vectorClock.clone(), sentRounds,
+                ProcessMetrics.currentTimeMicros());
+        sentRounds++;
+        addToRound(broadcastMessage);
+        for (int i = 0; i < totalProcesses; i++) {
+            creditSent[i] = vectorClock[i]; // The clock reaches every peer, directly or relayed
+        }
+
+        if (multicast != null && multicast.send(broadcastMessage)) {
+            broadcastWrites++;
+        } else if (tree != null) {
+            for (int child : tree.childrenFor(processID)) {
+                sendTo(wireIndexOf(child), broadcastMessage);
             }
         } else {
-            // Add the message to the priority queue for the next round
-            Message queuedMessage = new Message(processID, message, vectorClock.clone(), currentRound + 1);
-            messagesToBroadcast.offer(queuedMessage);
+            for (int i = 0; i < wires.length; i++) {
+                sendTo(i, broadcastMessage);
+            }
+        }
+
+        // Messages of this round may now affect our clock
+        int round = broadcastMessage.getRound();
+        if (earlyMessages.count(round) > 0) {
+            for (int i = 0; i < totalProcesses; i++) {
+                Message m = earlyMessages.remove(round, i);
+                if (m != null) {
+                    acceptMessage(m);
+                }
+            }
+        }
+    }
+
+    private void sendTo(int wireIndex, Message message) {
+        Wire wire = wires[wireIndex];
+        if (wire == null) {
+            return; // Connection was never established
+        }
+        // Each peer gets only the clock entries that changed since our last message to it, as long
+        // as its wire keeps our messages in order; the others get full clocks
+        wire.sendMessage(compressClocks && wire.isFifo() ? clockCompressor.compressFor(wireIndex, message) : message);
+        broadcastWrites++;
+    }
+
+    // Pass a message on to our children in its source's tree, with its full clock, since the
+    // diff state of each wire only follows our own messages
+    private void relay(Message message) {
+        for (int child : tree.childrenFor(message.getSenderId())) {
+            Wire wire = wires[wireIndexOf(child)];
+            if (wire != null) {
+                wire.sendMessage(message);
+            }
+        }
+    }
+
+    // Peers are connected in process ID order, skipping ourselves, as Main and the simulator do;
+    // the automatic bootstrap places wires by the ID each peer reports
+    private int wireIndexOf(int processId) {
+        return processId < processID ? processId - 1 : processId - 2;
+    }
+
+    private int peerIdOf(int slot) {
+        return slot < processID - 1 ? slot + 1 : slot + 2;
+    }
+
+    long getBroadcastWrites() {
+        return broadcastWrites;
+    }
+
+    // Messages written to all wires so far, including relayed ones
+    long getMessagesSent() {
+        long sent = 0;
+        for (Wire wire : wires) {
+            if (wire != null) {
+                sent += wire.getStats().getMessagesSent();
+            }
         }
+        return sent;
+    }
+
+    // Traffic per connection, outbound wires first, then inbound connections
+    List<String> getWireStatistics() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < wires.length; i++) {
+            if (wires[i] != null) {
+                InetSocketAddress remote = wires[i].remoteAddress();
+                lines.add("wire " + i + (remote != null ? " -> " + remote : "") + ": " + wires[i].getStats());
+            }
+        }
+        if (multicast != null && channel == 0) {
+            lines.add(multicast.toString());
+        }
+        if (sharedMemory != null) {
+            lines.add("inbound shared memory: " + sharedMemory.getInboundStats());
+        }
+        Map<String, WireStats> inbound = nioTransport != null ? nioTransport.getInboundStats() : inboundStats;
+        synchronized (inbound) {
+            for (Map.Entry<String, WireStats> entry : inbound.entrySet()) {
+                lines.add("inbound " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        return lines;
+    }
+
+    public ProcessMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getProcessID() {
+        return processID;
+    }
+
+    // Size of the group, this process included
+    public int getTotalProcesses() {
+        return totalProcesses;
+    }
+
+    // Write coalescing statistics of every wire, one line per wire
+    public String getBatchStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < wires.length; i++) {
+            if (wires[i] != null) {
+                sb.append("wire ").append(i).append(": ").append(wires[i].getBatchStats()).append("\n");
+            }
+        }
+        return sb.toString();
     }
 
     // Method to start receiving messages and handle them based on vector clock algorithm
@@ -179,7 +1100,7 @@ public class Process {
     }
 
     // Check if a message is deliverable based on vector clock comparison
-    private boolean isDeliverable(Message message) {
+    boolean isDeliverable(Message message) {
         boolean deliverable = true; // Assume the message is deliverable initially
 
         for (int i = 0; i < vectorClock.length; i++) {
@@ -200,148 +1121,441 @@ public class Process {
         return deliverable;
     }
 
-    // Deliver the message and update the process's vector clock
+    // The message is causally delivered, it waits for the rest of its round before it is written out
     private void deliverMessage(Message message) {
-        // Add the message to the list of delivered messages
-        receivedMessages.add(message);
-    
-        if (receivedMessages.size() == totalProcesses) {
-            Set<Message> deliverable = new HashSet<>();
-    
-            // Iterate through the received messages that have not been delivered
-            Iterator<Message> iterator = receivedMessages.iterator();
-            while (iterator.hasNext()) {
-                Message m = iterator.next();
-                if (!deliveredMessages.contains(m)) {
-                    deliverable.add(m);
-                    iterator.remove(); // Remove the message from receivedMessages
-                }
-            }
-    
-            // Deliver all messages in deliverable, in increasing order of (ts(m), sender(m))
-            deliverMessagesInOrder(deliverable);
-    
-            // Add the delivered messages to the deliveredMessages set
-            deliveredMessages.addAll(deliverable);
-    
-            // Increment the round variable
-            System.out.println("Round " + currentRound + ": finished !\n");
-            currentRound++;
+        addToRound(message);
+    }
+
+    private void addToRound(Message message) {
+        roundMessages.add(message);
+    }
+
+    private boolean isRoundComplete(int round) {
+        return roundMessages.isComplete(round);
+    }
 
-            // Reset the flag for the new round
-            hasMessageSentInCurrentRound = false;
+    // Write out the lowest round once every process's message for it is in
+    private void completeRound() {
+        // The table keeps a round by sender, so it is already in increasing sender order
+        Message[] deliverable = roundMessages.messages(currentRound);
+        System.arraycopy(deliverable, 0, deliveryOrder, 0, totalProcesses);
+        roundMessages.clear(currentRound);
+        deliverRound();
 
-            // Broadcast queued messages for the new round
-            while (!messagesToBroadcast.isEmpty() && messagesToBroadcast.peek().getRound() == currentRound) {
-                Message queuedMessage = messagesToBroadcast.poll();
-                broadcastMessage(queuedMessage.getContent());
+        // Retain the delivered messages until they are causally stable
+        long ownSentAtMicros = 0;
+        for (Message m : deliveryOrder) {
+            stability.delivered(m);
+            if (m.getSenderId() == processID) {
+                ownSentAtMicros = m.getSentAtMicros();
             }
+        }
+        Arrays.fill(deliveryOrder, null);
+        stability.evictStable();
 
-            
+        // Increment the round variable
+        if (logRounds) {
+            System.out.println("Round " + currentRound + ": finished !\n");
         }
+        currentRound++;
+        metrics.roundCompleted(currentRound, ownSentAtMicros, ProcessMetrics.currentTimeMicros());
     }
 
-    private void deliverMessagesInOrder(Set<Process.Message> deliverable) {
-        // Convert the set to a list for sorting
-        List<Process.Message> messageList = new ArrayList<>(deliverable);
+    // Delivers one complete round, a message per process in any order; used by the benchmarks
+    void deliverMessagesInOrder(Collection<Process.Message> deliverable) {
+        for (Process.Message message : deliverable) {
+            deliveryOrder[message.getSenderId() - 1] = message;
+        }
+        deliverRound();
+        Arrays.fill(deliveryOrder, null);
+    }
 
-        // Sort the messages based on the ProcessID (low to high)
-        messageList.sort(Comparator.comparingInt(Process.Message::getSenderId));
+    // Hands the round in deliveryOrder to metrics, the delivery log and the listener
+    private void deliverRound() {
+        if (replaying) {
+            // Maybe written out before the restart, the watermark at the end of recovery tells
+            if (deliveryLog != null) {
+                if (recoveredRounds.isEmpty()) {
+                    recoveredFrom = currentRound;
+                }
+                for (Message message : deliveryOrder) {
+                    message.retain();
+                }
+                recoveredRounds.add(deliveryOrder.clone());
+            }
+            return;
+        }
 
-        // Create a StringBuilder to store the message contents
-        StringBuilder sb = new StringBuilder();
+        long now = ProcessMetrics.currentTimeMicros();
+        for (Process.Message message : deliveryOrder) {
+            metrics.delivered(message, now);
+        }
 
-        // Iterate through the sorted messages
-        for (Process.Message message : messageList) {
-            // Append the message content to the StringBuilder
-            sb.append(message.getContent()).append("\n");
+        // Hand the round to the log writer, the file is appended in the background straight from
+        // the payload buffers, which stay pinned until they are copied out
+        if (deliveryLog != null) {
+            for (Process.Message message : deliveryOrder) {
+                message.retain();
+            }
+            queueRound(currentRound, deliveryOrder);
         }
+        if (deliveryListener != null) {
+            deliveryListener.accept(deliveredView);
+        }
+    }
 
-        // Write the message contents to the process's text file
+    // Takes over one reference to each message; rounds are queued in order without gaps
+    private void queueRound(int round, Message[] messages) {
+        if (firstLoggedRound < 0) {
+            firstLoggedRound = round;
+        }
         try {
-            FileWriter writer = new FileWriter(fileName, true); // Open the file in append mode
-            writer.write(sb.toString());
-            writer.close();
-        } catch (IOException e) {
-            System.out.println("Error writing to file: " + e.getMessage());
+            deliveryLog.appendLines(messages);
+        } catch (IllegalStateException e) {
+            return; // Closed, or failed and already reported; the log released the messages
+        }
+        loggedRounds++;
+    }
+
+    // Called on the protocol loop with each delivered round, in delivery order. The list is
+    // reused for the next round, a listener copies whatever it wants to keep.
+    void setDeliveryListener(Consumer<List<Message>> listener) {
+        this.deliveryListener = listener;
+    }
+
+    // Stop the protocol loop, for detached processes that are done
+    void shutdown() {
+        if (channels != null) {
+            for (int c = 1; c < channels.length; c++) {
+                channels[c].shutdown();
+            }
+            for (ProtocolLoop loop : shardLoops) {
+                loop.shutdown();
+            }
+        }
+        if (ownsLoop) {
+            protocolLoop.shutdown();
+        }
+        if (multicast != null && channel == 0) {
+            multicast.close();
+        }
+        if (sharedMemory != null) {
+            sharedMemory.close();
+        }
+        metrics.shutdown();
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    // Copy of the clock and the lowest undelivered round, for checks after recovery
+    int[] getVectorClock() {
+        return vectorClock.clone();
+    }
+
+    int getCurrentRound() {
+        return currentRound;
+    }
+
     
-    private void UpdateClock(Message message) {
+    void UpdateClock(Message message) {
         // Update vector clock to the pointwise maximum
         for (int i = 0; i < vectorClock.length; i++) {
-            vectorClock[i] = Math.max(vectorClock[i], message.getVectorClock()[i]);
+            if (message.getVectorClock()[i] > vectorClock[i]) {
+                vectorClock[i] = message.getVectorClock()[i];
+                clockCompressor.touched(i);
+            }
         }
     }
 
 
-    // Check and deliver any buffered messages that are now deliverable
-    private void checkAndDeliverBufferedMessages() {
-        Iterator<Message> iterator = messageBuffer.iterator();
-        while (iterator.hasNext()) {
-            Message bufferedMessage = iterator.next();
-            if (isDeliverable(bufferedMessage)) {
-                iterator.remove();
-                deliverMessage(bufferedMessage);
+    // Deliver buffered messages for as long as each delivery unblocks another one
+    void checkAndDeliverBufferedMessages() {
+        Message bufferedMessage;
+        while ((bufferedMessage = messageBuffer.poll()) != null) {
+            UpdateClock(bufferedMessage);
+            deliverMessage(bufferedMessage);
+            messageBuffer.advanced(bufferedMessage.getSenderId() - 1);
+        }
+    }
+
+    // Called by every receive thread, hands the message to the protocol loop without blocking
+    void handleReceivedMessage(Object message) {
+        if (message instanceof Message) {
+            int ch = ((Message) message).getChannel();
+            if (ch == channel) {
+                protocolLoop.publish((Message) message);
+            } else if (channels != null && ch > 0 && ch < channels.length) {
+                channels[ch].protocolLoop.publish((Message) message);
+            } else {
+                System.out.println("Received a message for unknown channel " + ch + ", dropping it");
+                ((Message) message).release();
             }
+        } else {
+            System.out.println("Received object is not of type Message");
         }
     }
 
-    // Handle the logic for receiving and delivering messages based on vector clocks
-    private void handleReceivedMessage(Object message) {
-        synchronized (this) {
-            if (message instanceof Message) {
-                
-                Message typedMessage = (Message) message;
+    // Handle the logic for receiving and delivering messages based on vector clocks, runs on the protocol loop
+    void onReceivedMessage(Message message) {
+        // Diff-encoded clocks are rebuilt in arrival order, before anything looks at them
+        Message typedMessage = clockCompressor.expand(message);
+        if (reliable) {
+            acknowledgePiggybacked(typedMessage);
+        }
+        if (tree != null && !replaying) {
+            relay(typedMessage); // Before any hold-back, children must not wait on our own progress
+        }
+        logReceived(typedMessage);
+        stability.observed(typedMessage); // The sender's clock tells us what it has delivered
+        int sender = typedMessage.getSenderId() - 1;
+        creditGranted[sender] = Math.max(creditGranted[sender], typedMessage.getVectorClock()[processID - 1]);
+
+        if (typedMessage.getRound() >= sentRounds) {
+            // Our own message for that round must not depend on it, hold it until we have sent
+            if (!earlyMessages.add(typedMessage)) {
+                typedMessage.release(); // A second copy of a message we already hold
+            }
+        } else {
+            acceptMessage(typedMessage);
+        }
+        advance();
+        grantCredits();
+        metrics.received(messageBuffer.size() + earlyMessages.size());
+        snapshotIfDue();
+    }
 
-                if (isDeliverable(typedMessage)) {
-                    UpdateClock(typedMessage);
-                    deliverMessage(typedMessage);
-                    checkAndDeliverBufferedMessages();
-                } else {
-                    messageBuffer.add(typedMessage);
-                }
+    // Explicit grants to peers that delivered creditGrantEvery more of their messages here since
+    // they last heard, for peers that wait on us while we have nothing to piggyback on
+    private void grantCredits() {
+        if (credits == 0 || replaying) {
+            return;
+        }
+        for (int i = 0; i < totalProcesses; i++) {
+            if (i == processID - 1 || vectorClock[i] - creditSent[i] < creditGrantEvery) {
+                continue;
+            }
+            Wire wire = identifiedWire(i + 1);
+            if (wire != null) {
+                wire.sendCredit(processID, vectorClock[i]);
+                creditSent[i] = vectorClock[i];
+            }
+        }
+    }
 
-            } else {
-                System.out.println("Received object is not of type Message");
+    // Called by receive threads with control frames a peer put in its stream to us
+    void handleControl(byte kind, int processId, long value) {
+        if (kind == MessageCodec.CONTROL_FENCE) {
+            if (sharedMemory != null) {
+                sharedMemory.fenced(processId, value); // Our reader of that sender's ring waits for it
+            }
+            return;
+        }
+        int ch = (int) (value >>> MessageCodec.CREDIT_CHANNEL_SHIFT);
+        if (kind == MessageCodec.CONTROL_CREDIT && ch != 0) {
+            if (channels != null && ch < channels.length) {
+                channels[ch].handleControl(kind, processId, value & ((1L << MessageCodec.CREDIT_CHANNEL_SHIFT) - 1));
             }
+            return;
+        }
+        if (kind == MessageCodec.CONTROL_CREDIT && processId >= 1 && processId <= totalProcesses) {
+            protocolLoop.execute(() -> onCredit(processId, value));
         }
     }
 
+    private void onCredit(int processId, long delivered) {
+        if (delivered <= creditGranted[processId - 1]) {
+            return; // Already known, most grants only repeat what the piggybacked clocks told us
+        }
+        logCredit(processId, delivered);
+        creditGranted[processId - 1] = delivered;
+        advance();
+        snapshotIfDue();
+    }
 
-    // Generate a random wait time for message sending
-    private void randomWait() {
-        try {
-            Thread.sleep(randomTimeGenerator.nextInt(10));
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    // The sender's clock entry for us is a cumulative ack for the wire to it
+    private void acknowledgePiggybacked(Message message) {
+        Wire wire = identifiedWire(message.getSenderId());
+        if (wire != null) {
+            wire.acknowledge(message.getVectorClock()[processID - 1]);
+        }
+    }
+
+    // The wire whose peer said it is processId, null if none did; control frames such as credit
+    // grants speak for a peer, so they never go by slot alone
+    private Wire identifiedWire(int processId) {
+        for (Wire wire : wires) {
+            if (wire != null && wire.getPeerProcessId() == processId) {
+                return wire;
+            }
+        }
+        return null;
+    }
+
+    private void acceptMessage(Message message) {
+        if (isDeliverable(message)) {
+            UpdateClock(message);
+            deliverMessage(message);
+            messageBuffer.advanced(message.getSenderId() - 1);
+            checkAndDeliverBufferedMessages();
+        } else if (!messageBuffer.add(message)) {
+            message.release(); // Already delivered or already held, nothing else holds this copy
         }
     }
 
 
+    // Delivered messages not yet known to be delivered everywhere
+    public int getRetainedMessageCount() {
+        return stability.getRetainedCount();
+    }
+
+
     // Nested class for messages with vector clocks
     public static class Message implements Serializable {
-        private final int senderId;
-        private final String content;
+        // Not final only so MessagePool can refill a released message, see reuse
+        private int senderId;
+        private int channel; // Causal group the message belongs to, 0 for the default one
+        private final String content; // Null when the message carries a binary payload
+        private transient ByteBuffer payload; // Null for text messages, never modified once set
+        private transient AtomicInteger payloadRefs; // Set only when payload came from the BufferPool
+        private transient boolean recyclable; // From MessagePool and never copied, goes back on the last release
         private final int[] vectorClock;
-        private final int round;
+        private int round;
+        private final int[] clockIndices; // Set only on the wire when the clock is sent as a diff
+        private long sentAtMicros; // Sender's ProcessMetrics.currentTimeMicros() at send, 0 if unknown
     
         public Message(int senderId, String content, int[] vectorClock, int round) {
+            this(senderId, 0, content, vectorClock, null, round, 0);
+        }
+
+        public Message(int senderId, String content, int[] vectorClock, int round, long sentAtMicros) {
+            this(senderId, 0, content, vectorClock, null, round, sentAtMicros);
+        }
+
+        // The payload stays owned by the caller and must not change while the message is in use
+        public Message(int senderId, ByteBuffer payload, int[] vectorClock, int round, long sentAtMicros) {
+            this(senderId, 0, payload, vectorClock, round, sentAtMicros);
+        }
+
+        public Message(int senderId, int channel, ByteBuffer payload, int[] vectorClock, int round, long sentAtMicros) {
+            this(senderId, channel, null, vectorClock, null, round, sentAtMicros);
+            this.payload = payload;
+        }
+
+        private Message(int senderId, int channel, String content, int[] vectorClock, int[] clockIndices, int round,
+                        long sentAtMicros) {
             this.senderId = senderId;
+            this.channel = channel;
             this.content = content;
             this.vectorClock = vectorClock;
+            this.clockIndices = clockIndices;
             this.round = round;
+            this.sentAtMicros = sentAtMicros;
         }
-    
+
+        // A message whose clock only carries the entries at the given indices
+        public static Message compressed(int senderId, String content, int[] clockIndices, int[] clockValues, int round,
+                                         long sentAtMicros) {
+            return new Message(senderId, 0, content, clockValues, clockIndices, round, sentAtMicros);
+        }
+
+        // A message owning a buffer from BufferPool.shared(), handed back once every holder released it
+        static Message pooled(int senderId, int channel, ByteBuffer payload, int[] clockIndices, int[] vectorClock,
+                              int round, long sentAtMicros) {
+            Message message = new Message(senderId, channel, null, vectorClock, clockIndices, round, sentAtMicros);
+            message.payload = payload;
+            message.payloadRefs = new AtomicInteger(1);
+            return message;
+        }
+
+        // An empty message for MessagePool, with a clock array of the given length
+        static Message blank(int clockLength, boolean recyclable) {
+            Message message = new Message(0, 0, null, new int[clockLength], null, 0, 0);
+            message.payloadRefs = new AtomicInteger();
+            message.recyclable = recyclable;
+            return message;
+        }
+
+        // Fills a message from MessagePool.acquire, whose clock entries were already written;
+        // it then holds one reference, like a message from pooled
+        void reuse(int senderId, int channel, ByteBuffer payload, int round, long sentAtMicros) {
+            this.senderId = senderId;
+            this.channel = channel;
+            this.payload = payload;
+            this.round = round;
+            this.sentAtMicros = sentAtMicros;
+            payloadRefs.set(1);
+        }
+
+        // Same message with a full clock, sharing the payload and its references
+        public Message withClock(int[] fullClock) {
+            return copy(fullClock, null);
+        }
+
+        // Same message with a compressed clock, sharing the payload and its references
+        public Message withCompressedClock(int[] indices, int[] values) {
+            return copy(values, indices);
+        }
+
+        private Message copy(int[] clock, int[] indices) {
+            recyclable = false; // The copy shares our references, so the last release may be on either
+            Message copy = new Message(senderId, channel, content, clock, indices, round, sentAtMicros);
+            copy.payload = payload;
+            copy.payloadRefs = payloadRefs;
+            return copy;
+        }
+
         public int getSenderId() {
             return senderId;
         }
+
+        public int getChannel() {
+            return channel;
+        }
     
+        // The payload as text, decoded on every call for binary messages
         public String getContent() {
-            return content;
+            return content != null ? content : StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+        }
+
+        public boolean hasPayload() {
+            return payload != null;
+        }
+
+        // The payload bytes between position and limit, a fresh view that must not be written to
+        public ByteBuffer getPayload() {
+            return payload != null ? payload.duplicate() : ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // The payload buffer itself, null for text messages; read it with absolute gets only
+        ByteBuffer peekPayload() {
+            return payload;
+        }
+
+        // Keeps a pooled payload alive for one more holder, which must call release()
+        public void retain() {
+            if (payloadRefs != null) {
+                payloadRefs.incrementAndGet();
+            }
+        }
+
+        // Drops one holder, the last one hands a pooled payload back, and a recyclable message
+        // itself; no-op for other messages. Nothing may use the message after its last release.
+        public void release() {
+            if (payloadRefs != null && payloadRefs.decrementAndGet() == 0) {
+                BufferPool.shared().release(payload);
+                if (recyclable) {
+                    payload = null;
+                    MessagePool.shared().recycle(this);
+                }
+            }
         }
     
+        // The full clock, or only the values at getClockIndices() for a compressed message
         public int[] getVectorClock() {
             return vectorClock;
         }
@@ -349,6 +1563,77 @@ public class Process {
         public int getRound() {
             return round;
         }
+
+        public long getSentAtMicros() {
+            return sentAtMicros;
+        }
+
+        public boolean isCompressed() {
+            return clockIndices != null;
+        }
+
+        public int[] getClockIndices() {
+            return clockIndices;
+        }
+        // Position of this message in its sender's stream, the sender's own clock entry
+        public int getSequence() {
+            if (clockIndices == null) {
+                return vectorClock[senderId - 1];
+            }
+            // A diff always carries the sender's own entry, it changes with every message
+            for (int i = 0; i < clockIndices.length; i++) {
+                if (clockIndices[i] == senderId - 1) {
+                    return vectorClock[i];
+                }
+            }
+            return 0;
+        }
+
+        // A message is identified by its channel, sender and sequence number
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Message)) {
+                return false;
+            }
+            Message other = (Message) o;
+            return senderId == other.senderId && channel == other.channel && getSequence() == other.getSequence();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * channel + senderId) + getSequence();
+        }
+
+        // Buffers are not serializable, the payload travels as a length and its bytes (-1 for none)
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            if (payload == null) {
+                out.writeInt(-1);
+                return;
+            }
+            ByteBuffer bytes = payload.duplicate();
+            out.writeInt(bytes.remaining());
+            if (bytes.hasArray()) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            } else {
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                out.write(copy);
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                payload = ByteBuffer.wrap(bytes);
+            }
+        }
     }
 }
 
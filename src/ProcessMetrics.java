@@ -0,0 +1,179 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for one process, recorded on the protocol loop without allocation.
+ *
+ * Delivery latency runs from the sender stamping a message to this process writing it out, so
+ * across machines it includes their clock offset. Hold-back depth is sampled after every receive.
+ * Round time runs from this process sending its message for a round to the round completing,
+ * which is how long it waited on the slowest peer. Hold-back depth includes messages of rounds
+ * this process has not sent its own message for yet.
+ *
+ * Exported through JMX unless {@code -Dcausal.metrics.jmx=false}, and printed every
+ * {@code -Dcausal.metrics.dumpSeconds} seconds when that is set.
+ */
+public class ProcessMetrics implements ProcessMetricsMXBean {
+
+    // Wall clock at class load plus the monotonic clock since, microsecond resolution without allocating
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long NANO_ORIGIN = System.nanoTime();
+
+    private final Process process;
+    private final Histogram deliveryLatencyMicros = new Histogram();
+    private final Histogram holdBackDepth = new Histogram();
+    private final Histogram roundTimeMicros = new Histogram();
+    private volatile long deliveredMessages; // Single writer, the protocol loop
+    private volatile int lastHoldBackDepth;
+    private volatile int currentRound;
+    private ScheduledExecutorService dumpScheduler;
+
+    public ProcessMetrics(Process process) {
+        this.process = process;
+    }
+
+    public static long currentTimeMicros() {
+        return EPOCH_MICROS + (System.nanoTime() - NANO_ORIGIN) / 1000;
+    }
+
+    // Register with JMX and start the periodic dump as configured
+    public void start() {
+        if (Boolean.parseBoolean(System.getProperty("causal.metrics.jmx", "true"))) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        new ObjectName("causal:type=Process,id=" + process.getProcessID()));
+            } catch (Exception e) {
+                System.out.println("Error registering metrics MBean: " + e.getMessage());
+            }
+        }
+        long dumpSeconds = Long.getLong("causal.metrics.dumpSeconds", 0L);
+        if (dumpSeconds > 0) {
+            dumpScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumpScheduler.scheduleAtFixedRate(() -> System.out.print(getSummary()),
+                    dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    void delivered(Process.Message message, long nowMicros) {
+        deliveredMessages++;
+        if (message.getSentAtMicros() > 0) {
+            deliveryLatencyMicros.record(nowMicros - message.getSentAtMicros());
+        }
+    }
+
+    void received(int holdBackSize) {
+        lastHoldBackDepth = holdBackSize;
+        holdBackDepth.record(holdBackSize);
+    }
+
+    void roundCompleted(int nextRound, long ownSentAtMicros, long nowMicros) {
+        currentRound = nextRound;
+        if (ownSentAtMicros > 0) {
+            roundTimeMicros.record(nowMicros - ownSentAtMicros);
+        }
+    }
+
+    @Override
+    public int getProcessId() {
+        return process.getProcessID();
+    }
+
+    @Override
+    public int getCurrentRound() {
+        return currentRound;
+    }
+
+    @Override
+    public long getDeliveredMessages() {
+        return deliveredMessages;
+    }
+
+    @Override
+    public double getDeliveryLatencyMeanMicros() {
+        return deliveryLatencyMicros.getMean();
+    }
+
+    @Override
+    public long getDeliveryLatencyP50Micros() {
+        return deliveryLatencyMicros.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getDeliveryLatencyP99Micros() {
+        return deliveryLatencyMicros.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getDeliveryLatencyP999Micros() {
+        return deliveryLatencyMicros.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getDeliveryLatencyMaxMicros() {
+        return deliveryLatencyMicros.getMax();
+    }
+
+    @Override
+    public int getHoldBackDepth() {
+        return lastHoldBackDepth;
+    }
+
+    @Override
+    public long getHoldBackDepthP99() {
+        return holdBackDepth.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getHoldBackDepthMax() {
+        return holdBackDepth.getMax();
+    }
+
+    @Override
+    public long getRoundTimeP50Micros() {
+        return roundTimeMicros.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getRoundTimeP99Micros() {
+        return roundTimeMicros.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRoundTimeMaxMicros() {
+        return roundTimeMicros.getMax();
+    }
+
+    @Override
+    public String[] getWireStatistics() {
+        return process.getWireStatistics().toArray(new String[0]);
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("metrics process ").append(getProcessId())
+                .append(": round=").append(currentRound)
+                .append(" delivered=").append(deliveredMessages)
+                .append(" holdBack=").append(lastHoldBackDepth).append("\n");
+        sb.append("  deliveryLatency us ").append(deliveryLatencyMicros).append("\n");
+        sb.append("  holdBackDepth ").append(holdBackDepth).append("\n");
+        sb.append("  roundTime us ").append(roundTimeMicros).append("\n");
+        for (String line : process.getWireStatistics()) {
+            sb.append("  ").append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        if (dumpScheduler != null) {
+            dumpScheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * JMX view of one process, registered as {@code causal:type=Process,id=<processID>}.
+ * Latencies are in microseconds.
+ */
+public interface ProcessMetricsMXBean {
+
+    int getProcessId();
+
+    int getCurrentRound();
+
+    long getDeliveredMessages();
+
+    double getDeliveryLatencyMeanMicros();
+
+    long getDeliveryLatencyP50Micros();
+
+    long getDeliveryLatencyP99Micros();
+
+    long getDeliveryLatencyP999Micros();
+
+    long getDeliveryLatencyMaxMicros();
+
+    int getHoldBackDepth();
+
+    long getHoldBackDepthP99();
+
+    long getHoldBackDepthMax();
+
+    long getRoundTimeP50Micros();
+
+    long getRoundTimeP99Micros();
+
+    long getRoundTimeMaxMicros();
+
+    // One line per connection: outbound wires first, then inbound connections
+    String[] getWireStatistics();
+
+    // Everything above as the text the periodic dump prints
+    String getSummary();
+}
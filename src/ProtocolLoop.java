@@ -0,0 +1,83 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Single-writer event loop that owns a process's protocol state.
+ *
+ * Any number of threads publish into a lock-free mailbox: received messages go in as they are,
+ * everything else as a Runnable. One thread drains the mailbox in order, so the state it touches
+ * needs no locks and receive threads never wait on each other.
+ */
+public final class ProtocolLoop {
+
+    private final Queue<Object> mailbox = new ConcurrentLinkedQueue<>();
+    private final Consumer<Process.Message> messageHandler;
+    private final Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    public ProtocolLoop(String name, Consumer<Process.Message> messageHandler) {
+        this.messageHandler = messageHandler;
+        this.thread = ThreadMode.current().newThread(name, this::run);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Hand a received message to the loop, never blocks
+    public void publish(Process.Message message) {
+        enqueue(message);
+    }
+
+    // Run a task on the loop, never blocks
+    public void execute(Runnable task) {
+        enqueue(task);
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public int backlog() {
+        return mailbox.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void enqueue(Object event) {
+        mailbox.add(event);
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Object event = mailbox.poll();
+            if (event == null) {
+                sleeping = true;
+                // A producer may have enqueued before seeing the flag, check once more before parking
+                if (mailbox.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            try {
+                if (event instanceof Process.Message) {
+                    messageHandler.accept((Process.Message) event);
+                } else {
+                    ((Runnable) event).run();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
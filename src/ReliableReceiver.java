@@ -0,0 +1,134 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Receiving end of one inbound connection of the reliable layer.
+ *
+ * A sender with reliability enabled opens every connection with a HELLO carrying its process ID
+ * and gets back an ACK with the highest contiguous sequence this process holds from it. After
+ * that, only the next sequence is passed on: duplicates from resends are dropped, a gap is
+ * answered with one NACK for the first missing sequence and the messages after it are dropped
+ * until the resend arrives. An explicit ACK goes back every ackEvery accepted messages and whenever
+ * the connection runs out of buffered input, so a sender with a full ring is never left waiting
+ * for piggybacked acks that only come with our next broadcast.
+ *
+ * Connections that never send a HELLO are passed through untouched. A bootstrap IDENTIFY is
+ * answered with our own process ID.
+ */
+public class ReliableReceiver implements MessageCodec.ControlHandler, Consumer<Process.Message> {
+
+    private final int localProcessId;
+    private final long[] receivedUpTo; // Shared by all connections, guarded by its own monitor
+    private final int ackEvery;
+    private final Socket socket;
+    private final DataOutputStream replies;
+    private final ReentrantLock replyLock = new ReentrantLock(); // Not the monitor, the write may block
+    private final Consumer<Process.Message> accepted;
+    private int senderId; // From the HELLO, 0 until then
+    private long nackedAt; // First missing sequence already asked for
+    private int sinceAck;
+    private long lastAccepted;
+
+    public ReliableReceiver(int localProcessId, long[] receivedUpTo, int ackEvery, Socket socket,
+                            DataOutputStream replies, Consumer<Process.Message> accepted) {
+        this.localProcessId = localProcessId;
+        this.receivedUpTo = receivedUpTo;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.socket = socket;
+        this.replies = replies;
+        this.accepted = accepted;
+    }
+
+    @Override
+    public void control(byte kind, int processId, long value) {
+        if (kind == MessageCodec.CONTROL_IDENTIFY) {
+            reply(MessageCodec.CONTROL_IDENTIFY, 0);
+            return;
+        }
+        if (kind != MessageCodec.CONTROL_HELLO) {
+            return;
+        }
+        senderId = processId;
+        nackedAt = 0;
+        sinceAck = 0;
+        long upTo;
+        synchronized (receivedUpTo) {
+            upTo = receivedUpTo[processId - 1];
+        }
+        reply(MessageCodec.CONTROL_ACK, upTo);
+    }
+
+    @Override
+    public void accept(Process.Message message) {
+        if (senderId == 0) {
+            accepted.accept(message);
+            return;
+        }
+        long sequence = message.getSequence();
+        long nack = 0;
+        synchronized (receivedUpTo) {
+            // A half-dead older connection of the same sender may still be draining, so checking
+            // and handing over happen together to keep the sender's messages in order
+            long upTo = receivedUpTo[senderId - 1];
+            if (sequence <= upTo) {
+                message.release(); // Nobody else holds a dropped duplicate
+                return;
+            }
+            if (sequence > upTo + 1) {
+                if (nackedAt == upTo + 1) {
+                    message.release();
+                    return;
+                }
+                nackedAt = upTo + 1;
+                nack = upTo + 1;
+            } else {
+                receivedUpTo[senderId - 1] = sequence;
+                accepted.accept(message);
+            }
+        }
+        if (nack != 0) {
+            // Written outside the shared monitor, the other connections need not wait on it
+            message.release();
+            reply(MessageCodec.CONTROL_NACK, nack);
+            return;
+        }
+        lastAccepted = sequence;
+        if (++sinceAck >= ackEvery) {
+            acknowledgeAccepted();
+        }
+    }
+
+    // Called when no more input is buffered, acks whatever arrived in the burst
+    public void idle() {
+        if (sinceAck > 0) {
+            acknowledgeAccepted();
+        }
+    }
+
+    private void acknowledgeAccepted() {
+        sinceAck = 0;
+        reply(MessageCodec.CONTROL_ACK, lastAccepted);
+    }
+
+    private void reply(byte kind, long value) {
+        try {
+            replyLock.lock();
+            try {
+                MessageCodec.writeControl(replies, kind, localProcessId, value);
+                replies.flush();
+            } finally {
+                replyLock.unlock();
+            }
+        } catch (IOException e) {
+            // The sender reconnects, closing makes the read loop of this connection end
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already broken
+            }
+        }
+    }
+}
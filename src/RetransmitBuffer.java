@@ -0,0 +1,74 @@
+/**
+ * Bounded ring of messages sent to one peer and not yet acknowledged, indexed by sequence.
+ *
+ * Sequences are the sender's own clock entry, so they are contiguous on every link. A cumulative
+ * ack frees everything up to it; a NACK or a reconnect resends everything still held, oldest
+ * first (go-back-N). Not thread-safe, the owning wire synchronizes.
+ */
+public class RetransmitBuffer {
+
+    private final Process.Message[] ring;
+    private final int mask;
+    private long firstUnacked = 1; // Sequence in the oldest slot
+    private long nextSequence = 1; // Sequence the next added message must have
+    private boolean started; // The first message fixes the start, a recovered process is past 1
+
+    public RetransmitBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new Process.Message[Math.max(1, size)];
+        this.mask = ring.length - 1;
+    }
+
+    public boolean isFull() {
+        return nextSequence - firstUnacked == ring.length;
+    }
+
+    public void add(Process.Message message) {
+        if (isFull()) {
+            throw new IllegalStateException("Retransmit buffer is full");
+        }
+        if (!started) {
+            firstUnacked = nextSequence = message.getSequence();
+            started = true;
+        }
+        if (message.getSequence() != nextSequence) {
+            throw new IllegalArgumentException("Expected sequence " + nextSequence + " but got " + message.getSequence());
+        }
+        ring[(int) (nextSequence & mask)] = message;
+        nextSequence++;
+    }
+
+    // Frees every message up to and including the sequence, returns how many were freed
+    public int acknowledge(long sequence) {
+        int freed = 0;
+        while (firstUnacked <= sequence && firstUnacked < nextSequence) {
+            ring[(int) (firstUnacked & mask)] = null;
+            firstUnacked++;
+            freed++;
+        }
+        return freed;
+    }
+
+    // The held message with this sequence, or null if it was acknowledged or never sent
+    public Process.Message get(long sequence) {
+        if (sequence < firstUnacked || sequence >= nextSequence) {
+            return null;
+        }
+        return ring[(int) (sequence & mask)];
+    }
+
+    public long getFirstUnacked() {
+        return firstUnacked;
+    }
+
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public int size() {
+        return (int) (nextSequence - firstUnacked);
+    }
+}
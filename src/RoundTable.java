@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Messages of the rounds in flight, one slot per sender and round.
+ *
+ * Rounds live in a ring of reusable arrays indexed by round number, each with one entry per
+ * process, so filing a message and emptying a round allocate nothing, and a full round is
+ * already in sender order without sorting. The ring doubles when a round would land on a slot
+ * that still holds another round, which only happens while more rounds are open than it has
+ * slots, e.g. when a larger window is configured.
+ *
+ * Not thread-safe, the owning process serializes access.
+ */
+public class RoundTable {
+
+    private final int processes;
+    private Process.Message[][] slots; // round % slots.length -> messages by sender index
+    private int[] rounds; // Round held by each slot, meaningful only while its count is positive
+    private int[] counts;
+    private int size;
+
+    public RoundTable(int processes, int initialRounds) {
+        this.processes = processes;
+        int capacity = Integer.highestOneBit(Math.max(4, initialRounds) * 2 - 1); // Power of two
+        this.slots = new Process.Message[capacity][processes];
+        this.rounds = new int[capacity];
+        this.counts = new int[capacity];
+    }
+
+    /**
+     * Files a message under its round and sender.
+     *
+     * @return false, leaving the table unchanged, if that sender already has a message in the round
+     */
+    public boolean add(Process.Message message) {
+        int round = message.getRound();
+        int slot = slotFor(round);
+        while (counts[slot] > 0 && rounds[slot] != round) {
+            grow();
+            slot = slotFor(round);
+        }
+        Process.Message[] messages = slots[slot];
+        int sender = message.getSenderId() - 1;
+        if (counts[slot] > 0 && messages[sender] != null) {
+            return false;
+        }
+        rounds[slot] = round;
+        messages[sender] = message;
+        counts[slot]++;
+        size++;
+        return true;
+    }
+
+    public int count(int round) {
+        int slot = slotFor(round);
+        return counts[slot] > 0 && rounds[slot] == round ? counts[slot] : 0;
+    }
+
+    public boolean isComplete(int round) {
+        return count(round) == processes;
+    }
+
+    /**
+     * The messages of a round by sender index, null where a sender has none. The array belongs
+     * to the table: read it before the next add, and call clear once done with the round.
+     */
+    public Process.Message[] messages(int round) {
+        int slot = slotFor(round);
+        return counts[slot] > 0 && rounds[slot] == round ? slots[slot] : null;
+    }
+
+    // Takes one sender's message out of a round, null if it has none
+    public Process.Message remove(int round, int sender) {
+        int slot = slotFor(round);
+        if (counts[slot] == 0 || rounds[slot] != round || slots[slot][sender] == null) {
+            return null;
+        }
+        Process.Message message = slots[slot][sender];
+        slots[slot][sender] = null;
+        counts[slot]--;
+        size--;
+        return message;
+    }
+
+    // Forgets every message of a round, without releasing them
+    public void clear(int round) {
+        int slot = slotFor(round);
+        if (counts[slot] == 0 || rounds[slot] != round) {
+            return;
+        }
+        size -= counts[slot];
+        counts[slot] = 0;
+        Arrays.fill(slots[slot], null);
+    }
+
+    // Messages held in all rounds
+    public int size() {
+        return size;
+    }
+
+    // Every held message, by round slot and then sender, for snapshots
+    public void addAllTo(List<Process.Message> target) {
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (counts[slot] == 0) {
+                continue;
+            }
+            for (Process.Message message : slots[slot]) {
+                if (message != null) {
+                    target.add(message);
+                }
+            }
+        }
+    }
+
+    private int slotFor(int round) {
+        return round & (slots.length - 1);
+    }
+
+    private void grow() {
+        Process.Message[][] oldSlots = slots;
+        int[] oldRounds = rounds;
+        int[] oldCounts = counts;
+        slots = new Process.Message[2 * oldSlots.length][];
+        rounds = new int[slots.length];
+        counts = new int[slots.length];
+        for (int slot = 0; slot < oldSlots.length; slot++) {
+            int target = oldCounts[slot] > 0 ? slotFor(oldRounds[slot]) : -1;
+            if (target >= 0) {
+                slots[target] = oldSlots[slot];
+                rounds[target] = oldRounds[slot];
+                counts[target] = oldCounts[slot];
+            }
+        }
+        // Empty arrays are reused for the slots nobody moved into
+        int spare = 0;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                continue;
+            }
+            while (spare < oldSlots.length && oldCounts[spare] > 0) {
+                spare++;
+            }
+            slots[slot] = spare < oldSlots.length ? oldSlots[spare++] : new Process.Message[processes];
+        }
+    }
+}
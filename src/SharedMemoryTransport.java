@@ -0,0 +1,561 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Transport between processes on the same host through memory-mapped ring files, one
+ * single-producer single-consumer ring per direction of every pair.
+ *
+ * Each process creates its inbound rings at startup, one per possible sender, named after its
+ * own server port and the sender's ID: causal-PORT-from-ID.ring in causal.shm.dir. A sender maps
+ * the peer's ring once the TCP connection to it stands, which proves the ring exists. Frames are
+ * the process codec's, with control frames (credits) as on the stream transports; records start
+ * 8-byte aligned and never wrap, a PAD prefix sends the reader back to the start of the ring.
+ *
+ * Ring file layout: long write position at 0, long read position at 64 (own cache lines), the
+ * reader's heartbeat (wall clock millis) at 72, data from 128. Positions only grow; the writer
+ * publishes with a release store after the record is complete and the reader frees space the
+ * same way, so neither side takes a lock.
+ *
+ * A reader that has not beaten for causal.shm.deadMillis is taken for dead, crashed, stalled or
+ * restarted with a fresh ring: the writer stops waiting for space and sends over the TCP
+ * fallback instead. It goes back to the ring once the reader beats again, in the same ring after
+ * a stall or in the new one of a restarted peer. So that ring messages cannot overtake what went
+ * over TCP, it first sends a fence over the fallback and puts the same fence into the ring; the
+ * reader holds that ring at the fence until the fallback's copy arrived, at most deadMillis.
+ *
+ * One reader thread polls all inbound rings. With causal.shm.wait=spin it busy-spins, which needs
+ * a core of its own; with park (default) it spins briefly, then yields, then parks
+ * causal.shm.parkMicros (50) at a time while idle; there is no cross-process wake-up. A full ring makes the writer wait the same way. Frames larger than half
+ * a ring go over the TCP wire the link keeps as fallback.
+ *
+ * Settings: -Dcausal.shm.dir (/dev/shm when present, else java.io.tmpdir), -Dcausal.shm.ringBytes
+ * (4 MiB, a power of two), -Dcausal.shm.wait, -Dcausal.shm.parkMicros, -Dcausal.shm.deadMillis
+ * (2000).
+ */
+public class SharedMemoryTransport implements Closeable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int WRITE_POSITION = 0;
+    private static final int READ_POSITION = 64;
+    private static final int READER_HEARTBEAT = 72;
+    private static final int DATA = 128;
+    private static final int PAD = Integer.MIN_VALUE;
+    private static final int CONTROL_FRAME_LENGTH = 4 + 4 + 8;
+    private static final int SPINS = 100; // Idle rounds spent spinning before yielding
+    private static final int YIELDS = 1000; // Idle rounds spent yielding before parking
+
+    private final int processId;
+    private final MessageCodec codec;
+    private final Consumer<Process.Message> messageHandler;
+    private final MessageCodec.ControlHandler controlHandler;
+    private final Path directory;
+    private final int ringBytes;
+    private final boolean spin;
+    private final long parkNanos;
+    private final long deadMillis;
+    private final MappedByteBuffer[] inbound; // By sender ID - 1, null for ourselves
+    private final AtomicLongArray fencesSeen; // Highest fence each sender's fallback delivered
+    private final long[] fenceWaitSince; // When the reader stopped at a fence in each ring, 0 if not
+    private final WireStats inboundStats = new WireStats();
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    public SharedMemoryTransport(int processId, int serverPort, int totalProcesses, MessageCodec codec,
+                                 Consumer<Process.Message> messageHandler,
+                                 MessageCodec.ControlHandler controlHandler) throws IOException {
+        this.processId = processId;
+        this.codec = codec;
+        this.messageHandler = messageHandler;
+        this.controlHandler = controlHandler;
+        this.directory = defaultDirectory();
+        this.ringBytes = Integer.highestOneBit(Math.max(4096, Integer.getInteger("causal.shm.ringBytes", 4 << 20)));
+        this.spin = "spin".equalsIgnoreCase(System.getProperty("causal.shm.wait", "park"));
+        this.parkNanos = Long.getLong("causal.shm.parkMicros", 50L) * 1000;
+        this.deadMillis = Math.max(1, Long.getLong("causal.shm.deadMillis", 2000L));
+
+        Files.createDirectories(directory);
+        this.inbound = new MappedByteBuffer[totalProcesses];
+        this.fencesSeen = new AtomicLongArray(totalProcesses);
+        this.fenceWaitSince = new long[totalProcesses];
+        for (int sender = 1; sender <= totalProcesses; sender++) {
+            if (sender == processId) {
+                continue;
+            }
+            // A fresh file every start, a writer still mapping the old one cannot mix into it
+            Path file = ringFile(serverPort, sender);
+            Files.deleteIfExists(file);
+            inbound[sender - 1] = map(file, true);
+            LONGS.setRelease(inbound[sender - 1], READER_HEARTBEAT, System.currentTimeMillis());
+            file.toFile().deleteOnExit();
+        }
+        this.reader = ThreadMode.current().newThread("shm-reader-" + processId, this::readLoop);
+        reader.start();
+    }
+
+    private static Path defaultDirectory() {
+        String configured = System.getProperty("causal.shm.dir");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        Path shm = Paths.get("/dev/shm");
+        return Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    private Path ringFile(int readerPort, int senderId) {
+        return directory.resolve("causal-" + readerPort + "-from-" + senderId + ".ring");
+    }
+
+    private MappedByteBuffer map(Path file, boolean create) throws IOException {
+        StandardOpenOption[] options = create
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (FileChannel channel = FileChannel.open(file, options)) {
+            if (!create && channel.size() != DATA + ringBytes) {
+                throw new IOException(file + " has " + channel.size() + " bytes, expected " + (DATA + ringBytes));
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA + ringBytes);
+            buffer.order(ByteOrder.BIG_ENDIAN); // Frames are big-endian like on the wire
+            return buffer;
+        }
+    }
+
+    // True for addresses of this host, where a peer can share our memory
+    public static boolean isLocal(String ip) {
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The link to the peer with the given ID and server port, writing into the ring it created.
+     *
+     * @param fallback carries frames too large for the ring
+     * @return null when the peer has no ring for us, for instance without shared memory enabled
+     */
+    public Peer connect(int peerId, int peerPort, Wire fallback) {
+        Path file = ringFile(peerPort, processId);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return new Peer(peerId, file, fallback);
+        } catch (IOException e) {
+            System.out.println("Cannot map ring to process " + peerId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A fence came over the TCP fallback of the sender, everything before it was handed over
+    public void fenced(int senderId, long fence) {
+        if (senderId >= 1 && senderId <= fencesSeen.length()) {
+            fencesSeen.accumulateAndGet(senderId - 1, fence, Math::max);
+        }
+    }
+
+    public WireStats getInboundStats() {
+        return inboundStats;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(reader);
+    }
+
+    private void readLoop() {
+        ByteBuffer[] views = new ByteBuffer[inbound.length];
+        for (int i = 0; i < inbound.length; i++) {
+            if (inbound[i] != null) {
+                views[i] = inbound[i].duplicate().order(ByteOrder.BIG_ENDIAN);
+            }
+        }
+        int idle = 0;
+        int passes = 0;
+        while (running) {
+            if ((++passes & 255) == 0 || idle >= SPINS + YIELDS) {
+                beat(); // Before every park, and now and then while busy
+            }
+            boolean progress = false;
+            for (int i = 0; i < inbound.length; i++) {
+                if (inbound[i] != null) {
+                    try {
+                        progress |= drain(i, inbound[i], views[i]);
+                    } catch (IOException e) {
+                        // Frame boundaries are lost, nothing in this ring can be trusted any more
+                        e.printStackTrace();
+                        inbound[i] = null;
+                    }
+                }
+            }
+            if (progress) {
+                idle = 0;
+            } else {
+                idle = backOff(idle);
+            }
+        }
+    }
+
+    // Writers take a ring whose heartbeat stops for one with a dead reader
+    private void beat() {
+        long now = System.currentTimeMillis();
+        for (MappedByteBuffer ring : inbound) {
+            if (ring != null) {
+                LONGS.setOpaque(ring, READER_HEARTBEAT, now);
+            }
+        }
+    }
+
+    // Hand over every complete record in the ring, true if there was any
+    private boolean drain(int sender, MappedByteBuffer ring, ByteBuffer view) throws IOException {
+        long write = (long) LONGS.getAcquire(ring, WRITE_POSITION);
+        long start = (long) LONGS.getOpaque(ring, READ_POSITION);
+        long read = start;
+        while (read < write) {
+            int offset = (int) (read & (ringBytes - 1));
+            int prefix = ring.getInt(DATA + offset);
+            if (prefix == PAD) {
+                read += ringBytes - offset;
+                continue;
+            }
+            int recordLength;
+            if (prefix < 0) {
+                if (prefix < -MessageCodec.CONTROL_LAST) {
+                    throw new StreamCorruptedException("Invalid frame length: " + prefix);
+                }
+                recordLength = CONTROL_FRAME_LENGTH;
+                if (prefix == -MessageCodec.CONTROL_FENCE) {
+                    if (!passFence(sender, ring.getLong(DATA + offset + 8))) {
+                        break; // Later messages of the ring wait for the fallback
+                    }
+                } else if (controlHandler != null) {
+                    controlHandler.control((byte) -prefix, ring.getInt(DATA + offset + 4), ring.getLong(DATA + offset + 8));
+                }
+            } else {
+                int length = MessageCodec.checkFrameLength(prefix);
+                recordLength = 4 + length;
+                // Decode in place, the codec copies payloads out before the space is handed back
+                view.limit(DATA + offset + recordLength).position(DATA + offset + 4);
+                inboundStats.received(codec.readFrame(view, messageHandler));
+                view.limit(view.capacity());
+            }
+            inboundStats.receivedBytes(recordLength);
+            read += align(recordLength);
+        }
+        if (read == start) {
+            return false;
+        }
+        LONGS.setRelease(ring, READ_POSITION, read);
+        return true;
+    }
+
+    // Whether the fallback delivered the fence, or it is not coming: the connection may have
+    // broken with it, and a ring held for good would stop the sender for good
+    private boolean passFence(int sender, long fence) {
+        if (fencesSeen.get(sender) >= fence) {
+            fenceWaitSince[sender] = 0;
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (fenceWaitSince[sender] == 0) {
+            fenceWaitSince[sender] = now;
+        } else if (now - fenceWaitSince[sender] > deadMillis) {
+            System.out.println("Fence " + fence + " of process " + (sender + 1) + " did not come over TCP, reading its ring on");
+            fenceWaitSince[sender] = 0;
+            return true;
+        }
+        return false;
+    }
+
+    // Spinning only pays with a core to spare, yielding hands a busy core to the other side at once
+    private int backOff(int idle) {
+        if (spin || idle < SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+            return idle;
+        }
+        return idle + 1;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /** Writing end of one ring, the sending side of a peer connection. */
+    public class Peer implements Link {
+
+        private final int peerId;
+        private final Path file;
+        private final Wire fallback;
+        private final WireStats stats = new WireStats();
+        private final ReentrantLock lock = new ReentrantLock(); // Senders may park or write the fallback
+        private MappedByteBuffer ring;
+        private Object fileKey; // Identity of the mapped file, a restarted peer creates a new one
+        private long write; // Our own position, published after every send or batch
+        private boolean dead; // The reader stopped beating, everything goes over the fallback
+        private long nextRemapMillis;
+        private long fences; // Fences sent, numbered from 1
+
+        Peer(int peerId, Path file, Wire fallback) throws IOException {
+            this.peerId = peerId;
+            this.file = file;
+            this.fallback = fallback;
+            mapRing();
+        }
+
+        private void mapRing() throws IOException {
+            Object key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            this.ring = map(file, false);
+            this.fileKey = key;
+            this.write = (long) LONGS.getAcquire(ring, WRITE_POSITION);
+        }
+
+        @Override
+        public void send(Process.Message message) {
+            lock.lock();
+            try {
+                if (dead && !revived()) {
+                    sendOverFallback(message);
+                } else if (append(message)) {
+                    publish();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void sendBatch(List<Process.Message> messages) {
+            lock.lock();
+            try {
+                boolean appended = false;
+                for (Process.Message message : messages) {
+                    if (dead && !revived()) {
+                        sendOverFallback(message);
+                    } else {
+                        appended |= append(message);
+                    }
+                }
+                if (appended && !dead) {
+                    publish();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void sendControl(byte kind, int processId, long value) {
+            lock.lock();
+            try {
+                if ((dead && !revived()) || !appendControl(kind, processId, value)) {
+                    if (fallback != null && kind == MessageCodec.CONTROL_CREDIT) {
+                        fallback.sendCredit(processId, value);
+                    }
+                    return;
+                }
+                publish();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Copy a control frame into the ring without publishing it, false if the reader died
+        private boolean appendControl(byte kind, int processId, long value) {
+            int offset = reserve(CONTROL_FRAME_LENGTH);
+            if (offset < 0) {
+                return false;
+            }
+            ring.putInt(DATA + offset, -kind);
+            ring.putInt(DATA + offset + 4, processId);
+            ring.putLong(DATA + offset + 8, value);
+            write += align(CONTROL_FRAME_LENGTH);
+            stats.sentBytes(CONTROL_FRAME_LENGTH);
+            return true;
+        }
+
+        // Copy the frame into the ring without publishing it, false if it went over the fallback
+        private boolean append(Process.Message message) {
+            ByteBuffer[] frame;
+            try {
+                frame = codec.encode(message);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            int length = 0;
+            for (ByteBuffer part : frame) {
+                length += part.remaining();
+            }
+            if (length > ringBytes / 2) {
+                if (fallback == null) {
+                    System.out.println("Frame of " + length + " bytes does not fit the ring, dropping it");
+                }
+                sendOverFallback(message);
+                return false;
+            }
+            int offset = reserve(length);
+            if (offset < 0) {
+                sendOverFallback(message); // The reader died while we waited for space
+                return false;
+            }
+            int at = DATA + offset;
+            for (ByteBuffer part : frame) {
+                ring.put(at, part, part.position(), part.remaining());
+                at += part.remaining();
+            }
+            write += align(length);
+            stats.sent(1);
+            stats.sentBytes(length);
+            return true;
+        }
+
+        private void sendOverFallback(Process.Message message) {
+            if (fallback != null) {
+                fallback.sendMessage(message);
+            }
+        }
+
+        // Offset of a contiguous free range for the record, padding past the end of the ring
+        // first; -1 if the reader died while we waited
+        private int reserve(int length) {
+            int needed = align(length);
+            int offset = (int) (write & (ringBytes - 1));
+            if (offset + needed > ringBytes) {
+                if (!waitForSpace(ringBytes - offset)) {
+                    return -1;
+                }
+                ring.putInt(DATA + offset, PAD);
+                write += ringBytes - offset;
+                offset = 0;
+            }
+            return waitForSpace(needed) ? offset : -1;
+        }
+
+        // Published records wait for the reader, so a full ring first publishes what it holds;
+        // false once the reader stops beating or we shut down
+        private boolean waitForSpace(int bytes) {
+            if (write + bytes - (long) LONGS.getAcquire(ring, READ_POSITION) <= ringBytes) {
+                return true;
+            }
+            publish();
+            int idle = 0;
+            while (write + bytes - (long) LONGS.getAcquire(ring, READ_POSITION) > ringBytes) {
+                if (!running) {
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                if (now - (long) LONGS.getOpaque(ring, READER_HEARTBEAT) > deadMillis) {
+                    dead = true;
+                    nextRemapMillis = now + deadMillis;
+                    System.out.println("Process " + peerId + " stopped reading its shared memory ring, sending over TCP");
+                    return false;
+                }
+                idle = backOff(idle);
+            }
+            return true;
+        }
+
+        // Now and again while the reader is dead: back to the ring once its reader beats again,
+        // after a stall in the same ring or in the new ring of a restarted peer
+        private boolean revived() {
+            long now = System.currentTimeMillis();
+            if (now < nextRemapMillis) {
+                return false;
+            }
+            nextRemapMillis = now + deadMillis;
+            boolean remapped = false;
+            try {
+                if (Files.exists(file) && !Objects.equals(Files.readAttributes(file, BasicFileAttributes.class).fileKey(), fileKey)) {
+                    mapRing();
+                    remapped = true;
+                }
+            } catch (IOException e) {
+                // Not there yet, or gone again; try later
+            }
+            if (now - (long) LONGS.getOpaque(ring, READER_HEARTBEAT) > deadMillis || !fence()) {
+                return false;
+            }
+            dead = false;
+            System.out.println(remapped ? "Using the new shared memory ring of process " + peerId
+                    : "Process " + peerId + " reads its shared memory ring again, leaving TCP");
+            return true;
+        }
+
+        // What went over the fallback must reach the reader before what follows in the ring: the
+        // same fence goes over both, and the reader waits at the ring's copy for the other one
+        private boolean fence() {
+            if (fallback == null) {
+                return true;
+            }
+            long fence = ++fences;
+            if (!fallback.sendFence(processId, fence)) {
+                return true; // A fallback that cannot carry it delivers nothing more either
+            }
+            if (!appendControl(MessageCodec.CONTROL_FENCE, processId, fence)) {
+                return false;
+            }
+            publish();
+            return true;
+        }
+
+        private void publish() {
+            LONGS.setRelease(ring, WRITE_POSITION, write);
+        }
+
+        @Override
+        public WireStats getStats() {
+            return stats;
+        }
+
+        @Override
+        public InetSocketAddress remoteAddress() {
+            return fallback != null ? fallback.remoteAddress() : null;
+        }
+
+        @Override
+        public int peerProcessId() {
+            return fallback != null ? fallback.getPeerProcessId() : 0;
+        }
+
+        // Large frames and everything sent while the reader is dead take the fallback, and may
+        // overtake what still waits in the ring
+        @Override
+        public boolean isFifo() {
+            return fallback == null;
+        }
+
+        @Override
+        public void close() {
+            if (fallback != null) {
+                fallback.close();
+            }
+        }
+    }
+}
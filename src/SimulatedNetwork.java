@@ -0,0 +1,143 @@
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Latency, reordering and loss for loopback links, delivered by one timer thread.
+ *
+ * Each message is delayed by a latency drawn uniformly between the minimum and maximum. Channels
+ * are FIFO like a TCP connection: a message is never delivered before an earlier one on the same
+ * channel, unless it is picked for reordering, in which case it ignores the channel's order and
+ * may overtake. Lost messages are dropped without notice. Fault decisions come from one seeded
+ * generator, so a given seed and send order always produce the same faults.
+ */
+public class SimulatedNetwork {
+
+    private final long minLatencyNanos;
+    private final long maxLatencyNanos;
+    private final double reorderRate;
+    private final double lossRate;
+    private final Random random;
+    private final DelayQueue<InFlight> inFlight = new DelayQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread deliveryThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong transmitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+
+    public SimulatedNetwork(long minLatencyMicros, long maxLatencyMicros, double reorderRate, double lossRate, long seed) {
+        if (minLatencyMicros < 0 || maxLatencyMicros < minLatencyMicros) {
+            throw new IllegalArgumentException("Latency range must satisfy 0 <= min <= max.");
+        }
+        this.minLatencyNanos = TimeUnit.MICROSECONDS.toNanos(minLatencyMicros);
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        this.reorderRate = reorderRate;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        this.deliveryThread = new Thread(this::run, "simulated-network");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    // Ordering state for one direction of one link
+    public static class Channel {
+        private long lastDeliveryNanos;
+    }
+
+    public Channel newChannel() {
+        return new Channel();
+    }
+
+    void transmit(Channel channel, Process.Message message, Consumer<Process.Message> receiver) {
+        transmitted.incrementAndGet();
+        long deliverAt;
+        synchronized (this) {
+            if (random.nextDouble() < lossRate) {
+                dropped.incrementAndGet();
+                return;
+            }
+            long latency = minLatencyNanos;
+            if (maxLatencyNanos > minLatencyNanos) {
+                latency += (long) (random.nextDouble() * (maxLatencyNanos - minLatencyNanos));
+            }
+            deliverAt = System.nanoTime() + latency;
+            if (random.nextDouble() < reorderRate) {
+                reordered.incrementAndGet(); // Free to overtake earlier messages on this channel
+            } else {
+                deliverAt = Math.max(deliverAt, channel.lastDeliveryNanos);
+                channel.lastDeliveryNanos = deliverAt;
+            }
+        }
+        inFlight.add(new InFlight(deliverAt, sequence.getAndIncrement(), message, receiver));
+    }
+
+    public void shutdown() {
+        running = false;
+        deliveryThread.interrupt();
+    }
+
+    // Whether every channel delivers all its messages in send order
+    public boolean isFifo() {
+        return reorderRate == 0 && lossRate == 0;
+    }
+
+    public long getTransmitted() {
+        return transmitted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                InFlight next = inFlight.take();
+                next.receiver.accept(next.message);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class InFlight implements Delayed {
+        private final long deliverAtNanos;
+        private final long sequence; // Breaks ties so equal deadlines keep their send order
+        private final Process.Message message;
+        private final Consumer<Process.Message> receiver;
+
+        InFlight(long deliverAtNanos, long sequence, Process.Message message, Consumer<Process.Message> receiver) {
+            this.deliverAtNanos = deliverAtNanos;
+            this.sequence = sequence;
+            this.message = message;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            InFlight that = (InFlight) other;
+            int byTime = Long.compare(deliverAtNanos, that.deliverAtNanos);
+            return byTime != 0 ? byTime : Long.compare(sequence, that.sequence);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the ever-growing set of delivered messages with a matrix clock.
+ *
+ * Row k holds, per sender j, how many of j's messages process k is known to have delivered.
+ * Every received message piggybacks its sender's vector clock, which refreshes that sender's row.
+ * A delivered message is causally stable once every row has passed its sequence number. At that
+ * point no process can still need it, so it is dropped from the retained log.
+ *
+ * Memory is bounded by the N x N matrix plus the messages delivered but not yet stable.
+ * Not thread-safe, the owning process serializes access.
+ */
+public class StabilityTracker {
+
+    private final int self; // Index of the owning process
+    private final int[][] matrix; // matrix[k][j] = messages from j known delivered at k
+    private final int[] deliveredUpTo; // Highest sequence per sender handed to the application here
+    private final List<ArrayDeque<Process.Message>> retained; // Delivered but not yet stable, per sender
+    private volatile int retainedCount; // Single writer, read by monitoring threads
+    private volatile long evictedCount;
+
+    public StabilityTracker(int processID, int totalProcesses) {
+        this.self = processID - 1;
+        this.matrix = new int[totalProcesses][totalProcesses];
+        this.deliveredUpTo = new int[totalProcesses];
+        this.retained = new ArrayList<>(totalProcesses);
+        for (int i = 0; i < totalProcesses; i++) {
+            retained.add(new ArrayDeque<>());
+        }
+    }
+
+    // Refresh the sender's row from the clock it piggybacked
+    public void observed(Process.Message message) {
+        int[] row = matrix[message.getSenderId() - 1];
+        int[] clock = message.getVectorClock();
+        for (int j = 0; j < row.length; j++) {
+            row[j] = Math.max(row[j], clock[j]);
+        }
+    }
+
+    // Record a message handed to the application, it stays retained until it is stable
+    public void delivered(Process.Message message) {
+        int sender = message.getSenderId() - 1;
+        deliveredUpTo[sender] = Math.max(deliveredUpTo[sender], message.getSequence());
+        matrix[self][sender] = Math.max(matrix[self][sender], message.getSequence());
+        retained.get(sender).add(message);
+        retainedCount++;
+    }
+
+    public boolean isDelivered(Process.Message message) {
+        return message.getSequence() <= deliveredUpTo[message.getSenderId() - 1];
+    }
+
+    // Drop every retained message that all processes have delivered, returns how many were dropped
+    public int evictStable() {
+        int evicted = 0;
+        for (int j = 0; j < deliveredUpTo.length; j++) {
+            int stable = stableUpTo(j);
+            ArrayDeque<Process.Message> log = retained.get(j);
+            while (!log.isEmpty() && log.peek().getSequence() <= stable) {
+                log.poll().release(); // Nothing needs its payload any more
+                evicted++;
+            }
+        }
+        retainedCount -= evicted;
+        evictedCount += evicted;
+        return evicted;
+    }
+
+    // Every message from sender j up to this sequence is delivered everywhere
+    public int stableUpTo(int sender) {
+        int stable = Integer.MAX_VALUE;
+        for (int[] row : matrix) {
+            stable = Math.min(stable, row[sender]);
+        }
+        return stable;
+    }
+
+    // Matrix, delivered counts and retained messages, for a process snapshot
+    public void writeTo(DataOutputStream out, MessageCodec codec) throws IOException {
+        for (int[] row : matrix) {
+            for (int value : row) {
+                out.writeInt(value);
+            }
+        }
+        for (int value : deliveredUpTo) {
+            out.writeInt(value);
+        }
+        out.writeInt(retainedCount);
+        for (ArrayDeque<Process.Message> log : retained) {
+            for (Process.Message message : log) {
+                codec.writeFrame(out, message);
+            }
+        }
+    }
+
+    public void readFrom(DataInputStream in, MessageCodec codec) throws IOException {
+        for (int[] row : matrix) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = in.readInt();
+            }
+        }
+        for (int j = 0; j < deliveredUpTo.length; j++) {
+            deliveredUpTo[j] = in.readInt();
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            codec.readFrame(in, message -> retained.get(message.getSenderId() - 1).add(message));
+        }
+        retainedCount = count;
+    }
+
+    public int getRetainedCount() {
+        return retainedCount;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Chooses what kind of thread runs the blocking parts of a process: socket readers, the accept
+ * loop and the protocol loop that performs sends. Set with {@code -Dcausal.threads=virtual};
+ * the default keeps platform threads.
+ *
+ * Virtual threads park instead of pinning an OS thread while blocked in a socket read, so many
+ * peers, or many processes in one JVM, no longer cost one OS thread and stack per connection.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode current() {
+        return "virtual".equalsIgnoreCase(System.getProperty("causal.threads", "platform")) ? VIRTUAL : PLATFORM;
+    }
+
+    // Executor for long-running blocking tasks, one thread per submitted task in virtual mode
+    public ExecutorService newExecutor() {
+        return this == VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newSingleThreadExecutor();
+    }
+
+    // An unstarted daemon thread of this mode
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL) {
+            return Thread.ofVirtual().name(name).unstarted(task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -1,12 +1,26 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Starts a load run on every process at the same moment and prints one report of their results.
+ *
+ * Each process gets "START startAt=T ..." on its trigger port, with T a common wall-clock start
+ * -Dload.startDelayMillis (2000) from now and every load setting given to this client as
+ * -Dload.NAME (see LoadDriver), so one command line configures the whole group. Each process
+ * answers with its RESULT line once it is done; the report lists them and adds group totals.
+ */
 public class TriggerClient {
 
+    private static final String[] LOAD_SETTINGS = {"rate", "payloadBytes", "durationSeconds", "warmupSeconds", "drainSeconds"};
+
     private List<String> processAddresses;
     private List<Integer> processPorts;
 
@@ -27,35 +41,105 @@ public class TriggerClient {
     }
 
     /**
-     * Sends the trigger to all registered processes to start their operations.
+     * Sends the trigger to all registered processes to start their operations, then waits for
+     * every result.
+     *
+     * @return the RESULT line of each process in registration order, null where none came back
      */
-    public void sendTriggers() {
-        for (int i = 0; i < processAddresses.size(); i++) {
-            try {
-                sendTrigger(processAddresses.get(i), processPorts.get(i));
-                System.out.println("Trigger sent to " + processAddresses.get(i) + ":" + processPorts.get(i));
-            } catch (IOException e) {
-                System.err.println("Failed to send trigger to " + processAddresses.get(i) + ":" + processPorts.get(i));
-                e.printStackTrace();
+    public String[] sendTriggers() throws InterruptedException {
+        StringBuilder trigger = new StringBuilder("START startAt=")
+                .append(System.currentTimeMillis() + Long.getLong("load.startDelayMillis", 2000L));
+        for (String name : LOAD_SETTINGS) {
+            String value = System.getProperty("load." + name);
+            if (value != null) {
+                trigger.append(' ').append(name).append('=').append(value);
             }
         }
+
+        // One connection per process, all open at once, each waits for its result
+        String[] results = new String[processAddresses.size()];
+        Thread[] waiters = new Thread[results.length];
+        for (int i = 0; i < results.length; i++) {
+            int index = i;
+            String target = processAddresses.get(i) + ":" + processPorts.get(i);
+            waiters[i] = new Thread(() -> {
+                try {
+                    results[index] = sendTrigger(processAddresses.get(index), processPorts.get(index), trigger.toString());
+                } catch (IOException e) {
+                    System.err.println("Failed to send trigger to " + target);
+                    e.printStackTrace();
+                }
+            }, "trigger-" + target);
+            waiters[i].start();
+            System.out.println("Trigger sent to " + target);
+        }
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        return results;
     }
 
     /**
-     * Sends a trigger message to a single process.
+     * Sends a trigger message to a single process and waits for its result.
      *
      * @param address the IP address of the process
      * @param port    the port on which the process listens for triggers
+     * @return the result line, or null if the process closed the connection without one
      * @throws IOException if an I/O error occurs when sending the trigger
      */
-    private void sendTrigger(String address, int port) throws IOException {
+    private String sendTrigger(String address, int port, String trigger) throws IOException {
         try (Socket socket = new Socket(address, port);
              OutputStream out = socket.getOutputStream();
-             PrintWriter writer = new PrintWriter(out, true)) {
-            writer.println("START");
+             PrintWriter writer = new PrintWriter(out, true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            writer.println(trigger);
+            return in.readLine();
         }
     }
 
+    // Per-process lines, then the group: summed counts and throughput, worst latencies
+    static void printReport(String[] results) {
+        System.out.println("=== Load report ===");
+        long sent = 0;
+        long rejected = 0;
+        long undelivered = 0;
+        long violations = 0;
+        double throughput = 0;
+        long p50 = 0;
+        long p99 = 0;
+        long p999 = 0;
+        long max = 0;
+        String digest = null;
+        boolean agreed = true;
+        int reported = 0;
+        for (String line : results) {
+            if (line == null || !line.startsWith("RESULT")) {
+                System.out.println("(no result)");
+                agreed = false;
+                continue;
+            }
+            System.out.println(line);
+            Map<String, String> fields = LoadDriver.parseTrigger(line);
+            reported++;
+            sent += Long.parseLong(fields.get("sent"));
+            rejected += Long.parseLong(fields.get("rejected"));
+            undelivered += Long.parseLong(fields.get("ownUndelivered"));
+            violations += Long.parseLong(fields.get("violations"));
+            throughput += Double.parseDouble(fields.get("deliveriesPerSecond"));
+            p50 = Math.max(p50, Long.parseLong(fields.get("p50")));
+            p99 = Math.max(p99, Long.parseLong(fields.get("p99")));
+            p999 = Math.max(p999, Long.parseLong(fields.get("p999")));
+            max = Math.max(max, Long.parseLong(fields.get("max")));
+            String nodeDigest = fields.get("delivered") + "/" + fields.get("digest");
+            agreed &= digest == null || digest.equals(nodeDigest);
+            digest = nodeDigest;
+        }
+        System.out.printf("group: processes=%d/%d sent=%d rejected=%d ownUndelivered=%d deliveriesPerSecond=%.1f%n",
+                reported, results.length, sent, rejected, undelivered, throughput);
+        System.out.printf("group latency us (worst process): p50=%d p99=%d p99.9=%d max=%d%n", p50, p99, p999, max);
+        System.out.printf("causal violations=%d, same delivery sequence everywhere=%s%n", violations, agreed);
+    }
+
     public static void main(String[] args) {
         if (args.length < 1) {
             System.out.println("Usage: java TriggerClient <IP1:Port1> <IP2:Port2> ...");
@@ -82,7 +166,11 @@ public class TriggerClient {
 
         // Send triggers
         if (!client.processAddresses.isEmpty()) {
-            client.sendTriggers();
+            try {
+                printReport(client.sendTriggers());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         } else {
             System.out.println("No valid process addresses provided. Exiting.");
         }
@@ -1,56 +1,568 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 public class Wire {
+    // Guards the streams and all send state; a lock rather than the monitor, since writes block
+    // and a virtual thread blocked inside synchronized would pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
     private ExecutorService executor;
+    private final MessageCodec codec;
+    private Link link; // Set when the transport frames messages itself: selector or loopback
 
-    public Wire(String ip, int port) {
+    // Write coalescing, only used once batching is enabled
+    private BatchPolicy batchPolicy;
+    private final List<Process.Message> pendingBatch = new ArrayList<>();
+    private long pendingSinceNanos;
+    private ScheduledFuture<?> lingerFlush;
+    private final BatchStats batchStats = new BatchStats();
+    private final WireStats stats = new WireStats(); // Stream path only, links keep their own
+    private volatile DelayInjector delay; // Artificial send delay, null when off
+    private int creditFrom; // Our process ID in the last credit grant, 0 before the first
+    private long lastCredit; // Repeated after a reconnect, the previous connection may have lost it
+
+    // Reliable delivery on the stream path, only used once enabled
+    private String ip;
+    private int port;
+    private RetransmitBuffer retransmit;
+    private final ArrayDeque<Process.Message> backlog = new ArrayDeque<>(); // Waiting for room in the ring
+    private int localProcessId;
+    private volatile int peerProcessId; // Learnt from the first ack, 0 until then
+    private boolean resumed; // Handshake of the current connection done, new messages go out directly
+    private long reconnectDelayMillis = MIN_RECONNECT_MILLIS;
+    private static final long MIN_RECONNECT_MILLIS = 50;
+    private static final long MAX_RECONNECT_MILLIS = 2000;
+
+    // Linger deadlines and reconnect attempts of every wire share one timer thread
+    private static ScheduledExecutorService flushScheduler;
+
+    public Wire(String ip, int port, MessageCodec codec) {
+        this.codec = codec;
+        this.ip = ip;
+        this.port = port;
         try {
             this.socket = new Socket(ip, port);
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            this.in = new ObjectInputStream(socket.getInputStream());
-            this.executor = Executors.newSingleThreadExecutor();
+            openStreams();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public Wire(Socket socket) {
+    public Wire(Socket socket, MessageCodec codec) {
+        this.codec = codec;
+        this.ip = socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : null;
+        this.port = socket.getPort();
         try {
             this.socket = socket;
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            this.in = new ObjectInputStream(socket.getInputStream());
-            this.executor = Executors.newSingleThreadExecutor();
+            openStreams();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Wire(NioTransport transport, String ip, int port) {
+        this.codec = null; // Frames are encoded by the transport
+        try {
+            this.link = transport.connect(ip, port);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    public Wire(Link link) {
+        this.codec = null;
+        this.link = link;
+    }
 
-    // Method to send a message
-    public void sendMessage(Object message) {
+    private void openStreams() throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(stats.countSent(socket.getOutputStream())));
+        this.in = new DataInputStream(new BufferedInputStream(stats.countReceived(socket.getInputStream())));
+        if (executor == null) {
+            this.executor = ThreadMode.current().newExecutor(); // Kept across reconnects
+        }
+    }
+
+
+    // Coalesce messages to this peer into batch frames from now on
+    public void enableBatching(BatchPolicy policy) {
+        lock.lock();
+        try {
+            this.batchPolicy = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hold every message back on the injector's timer before it is written, in send order
+    public void enableDelay(DelayInjector delay) {
+        lock.lock();
         try {
-            out.writeObject(message);
+            this.delay = delay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keep every message until the peer acknowledges it and survive broken connections: the wire
+     * reconnects with backoff, introduces itself with a HELLO and resends everything past the
+     * peer's ack. At most bufferCapacity messages are unacknowledged, later ones wait in order.
+     * Stream path only.
+     */
+    public void enableReliability(int localProcessId, int bufferCapacity) {
+        lock.lock();
+        try {
+            this.localProcessId = localProcessId;
+            this.retransmit = new RetransmitBuffer(bufferCapacity);
+            if (socket != null) {
+                startSession(socket);
+            } else {
+                scheduleReconnect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bootstrap handshake on a fresh connection, before anything else is written: sends our
+     * process ID and waits for the peer's.
+     *
+     * @return the peer's process ID
+     * @throws IOException if the connection fails or the peer does not answer in time
+     */
+    public int identify(int localProcessId, int timeoutMillis) throws IOException {
+        MessageCodec.writeControl(out, MessageCodec.CONTROL_IDENTIFY, localProcessId, 0);
+        out.flush();
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeoutMillis);
+        int[] peer = {0};
+        try {
+            while (peer[0] == 0) {
+                codec.readFrame(in, message -> { }, (kind, processId, value) -> {
+                    if (kind == MessageCodec.CONTROL_IDENTIFY) {
+                        peer[0] = processId;
+                    }
+                });
+            }
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+        peerProcessId = peer[0];
+        return peer[0];
+    }
+
+    public void close() {
+        DelayInjector delay = this.delay;
+        if (delay != null) {
+            delay.close();
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            } else if (link != null) {
+                link.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Process ID of the peer once it has identified itself or acknowledged anything, or once the
+    // link knows it; 0 before
+    public int getPeerProcessId() {
+        int id = peerProcessId;
+        return id == 0 && link != null ? link.peerProcessId() : id;
+    }
+
+    // Whether the peer gets our messages in send order and without gaps, true for TCP
+    public boolean isFifo() {
+        return link == null || link.isFifo();
+    }
+
+    // For wires whose peer is known without a handshake, such as in-process links placed by ID
+    void identifiedAs(int processId) {
+        peerProcessId = processId;
+    }
+
+    public BatchStats getBatchStats() {
+        return batchStats;
+    }
+
+    public WireStats getStats() {
+        return link != null ? link.getStats() : stats;
+    }
+
+    // Method to send a message, returns at once when a delay is configured: the delay's writer
+    // transmits it later, and queueing it takes neither this wire's lock nor the socket
+    public void sendMessage(Process.Message message) {
+        DelayInjector delay = this.delay;
+        if (delay != null) {
+            delay.schedule(() -> transmit(message));
+            return;
+        }
+        transmit(message);
+    }
+
+    private void transmit(Process.Message message) {
+        lock.lock();
+        try {
+            if (retransmit != null) {
+                if (retransmit.isFull() || !backlog.isEmpty()) {
+                    backlog.add(message);
+                    return;
+                }
+                retransmit.add(message);
+                if (!resumed) {
+                    return; // Goes out when the peer tells us where to resume
+                }
+            }
+            if (batchPolicy != null) {
+                queueForBatch(message);
+                return;
+            }
+            if (link != null) {
+                link.send(message);
+                return;
+            }
+            try {
+                codec.writeFrame(out, message);
+                out.flush();
+                stats.sent(1);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void queueForBatch(Process.Message message) {
+        pendingBatch.add(message);
+        if (pendingBatch.size() >= batchPolicy.getMaxMessages()) {
+            flushBatch();
+        } else if (pendingBatch.size() == 1) {
+            pendingSinceNanos = System.nanoTime();
+            lingerFlush = scheduler().schedule(this::flushBatch, batchPolicy.getLingerMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+
+    // Write everything pending as one frame, called on the size threshold or the linger deadline
+    public void flushBatch() {
+        lock.lock();
+        try {
+            if (pendingBatch.isEmpty()) {
+                return;
+            }
+            if (lingerFlush != null) {
+                lingerFlush.cancel(false);
+                lingerFlush = null;
+            }
+
+            try {
+                if (link != null) {
+                    link.sendBatch(pendingBatch);
+                } else {
+                    if (pendingBatch.size() == 1) {
+                        codec.writeFrame(out, pendingBatch.get(0));
+                    } else {
+                        codec.writeBatch(out, pendingBatch);
+                    }
+                    out.flush();
+                    stats.sent(pendingBatch.size());
+                }
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+            batchStats.record(pendingBatch.size(), System.nanoTime() - pendingSinceNanos);
+            pendingBatch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeFailed(IOException e) {
+        if (retransmit != null) {
+            connectionLost(socket); // Everything unacknowledged is still in the ring
+        } else {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tells the peer how many of its messages we have delivered, so it may send further. Goes
+     * out at once, ahead of delayed or batched messages, since only the latest value matters.
+     */
+    public void sendCredit(int localProcessId, long delivered) {
+        lock.lock();
+        try {
+            creditFrom = localProcessId;
+            lastCredit = delivered;
+            if (link != null) {
+                link.sendControl(MessageCodec.CONTROL_CREDIT, localProcessId, delivered);
+                return;
+            }
+            if (out == null || (retransmit != null && !resumed)) {
+                return; // Repeated once the session resumes
+            }
+            try {
+                MessageCodec.writeControl(out, MessageCodec.CONTROL_CREDIT, localProcessId, delivered);
+                out.flush();
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the point in the stream after every message sent so far, for a shared memory reader
+     * that must not take our ring messages before these. Unlike credits it stays behind delayed
+     * and batched messages.
+     *
+     * @return false when no connection carries it, so it never arrives and nothing else does
+     */
+    public boolean sendFence(int localProcessId, long fence) {
+        DelayInjector delayed = delay;
+        if (delayed != null) {
+            delayed.schedule(() -> writeFence(localProcessId, fence));
+            return true; // Lost with the connection if that breaks meanwhile, the reader stops waiting
+        }
+        return writeFence(localProcessId, fence);
+    }
+
+    private boolean writeFence(int localProcessId, long fence) {
+        lock.lock();
+        try {
+            flushBatch();
+            if (link != null) {
+                link.sendControl(MessageCodec.CONTROL_FENCE, localProcessId, fence);
+                return true;
+            }
+            if (out == null || (retransmit != null && (!resumed || !backlog.isEmpty()))) {
+                return false; // Messages still to go would come after it
+            }
+            try {
+                MessageCodec.writeControl(out, MessageCodec.CONTROL_FENCE, localProcessId, fence);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                writeFailed(e);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cumulative ack, from a control frame or piggybacked on a message of the peer
+    public void acknowledge(long sequence) {
+        lock.lock();
+        try {
+            if (retransmit == null || retransmit.acknowledge(sequence) == 0) {
+                return;
+            }
+            // Room in the ring, move waiting messages over in order
+            while (!backlog.isEmpty() && !retransmit.isFull()) {
+                Process.Message message = backlog.poll();
+                retransmit.add(message);
+                if (resumed && batchPolicy != null) {
+                    queueForBatch(message); // Behind whatever the batch already holds
+                } else {
+                    writeDirect(message);
+                }
+            }
+            if (batchPolicy == null) {
+                flushQuietly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // HELLO on a fresh connection, then a reader for the peer's acks and NACKs
+    private void startSession(Socket session) {
+        resumed = false;
+        try {
+            MessageCodec.writeControl(out, MessageCodec.CONTROL_HELLO, localProcessId, 0);
+            out.flush();
+        } catch (IOException e) {
+            connectionLost(session);
+            return;
+        }
+        DataInputStream sessionIn = in;
+        executor.submit(() -> {
+            try {
+                while (true) {
+                    codec.readFrame(sessionIn, message -> { }, this::onControl);
+                }
+            } catch (IOException e) {
+                connectionLost(session);
+            }
+        });
+    }
+
+    private void onControl(byte kind, int processId, long value) {
+        lock.lock();
+        try {
+            peerProcessId = processId;
+            if (kind == MessageCodec.CONTROL_ACK) {
+                acknowledge(value);
+                if (!resumed) {
+                    // Answer to our HELLO: the peer has everything up to value
+                    resumed = true;
+                    reconnectDelayMillis = MIN_RECONNECT_MILLIS;
+                    resend(value + 1);
+                    if (creditFrom != 0) {
+                        sendCredit(creditFrom, lastCredit);
+                    }
+                }
+            } else if (kind == MessageCodec.CONTROL_NACK) {
+                acknowledge(value - 1);
+                resend(value);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Go-back-N: write every held message from the sequence on, the receiver drops duplicates
+    private void resend(long from) {
+        for (long sequence = Math.max(from, retransmit.getFirstUnacked()); sequence < retransmit.getNextSequence(); sequence++) {
+            writeDirect(retransmit.get(sequence));
+        }
+        flushQuietly();
+    }
+
+    // Resent and moved-up messages skip batching, they are written in sequence order right away
+    private void writeDirect(Process.Message message) {
+        if (!resumed) {
+            return;
+        }
+        try {
+            codec.writeFrame(out, message);
+            stats.sent(1);
+        } catch (IOException e) {
+            connectionLost(socket);
+        }
+    }
+
+    private void flushQuietly() {
+        if (!resumed) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            connectionLost(socket);
+        }
+    }
+
+    // Drop the broken connection, only once per connection however many threads notice
+    private void connectionLost(Socket lost) {
+        lock.lock();
+        try {
+            if (lost == null || lost != socket) {
+                return;
+            }
+            resumed = false;
+            socket = null;
+            try {
+                lost.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+            if (batchPolicy != null) {
+                // Pending batch messages are in the ring and go out again on resume
+                if (lingerFlush != null) {
+                    lingerFlush.cancel(false);
+                    lingerFlush = null;
+                }
+                pendingBatch.clear();
+            }
+            System.out.println("Connection to " + ip + ":" + port + " lost, reconnecting...");
+            scheduleReconnect();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleReconnect() {
+        long delayMillis = reconnectDelayMillis;
+        reconnectDelayMillis = Math.min(MAX_RECONNECT_MILLIS, reconnectDelayMillis * 2);
+        scheduler().schedule(this::reconnect, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        Socket fresh;
+        try {
+            fresh = new Socket(ip, port); // Outside the lock, senders keep filling the ring
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                scheduleReconnect();
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            try {
+                this.socket = fresh;
+                openStreams();
+            } catch (IOException e) {
+                connectionLost(fresh);
+                return;
+            }
+            startSession(fresh);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wire-batch-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return flushScheduler;
+    }
+
     // Method to receive a message with a callback
     public void receiveMessage(Consumer<Object> messageHandler) {
+        if (link != null) {
+            return; // The transport dispatches inbound messages itself
+        }
+        if (retransmit != null) {
+            return; // The session reader owns the stream, peers only send control frames back
+        }
         executor.submit(() -> {
+            Consumer<Process.Message> sink = messageHandler::accept;
             while (!socket.isClosed()) {
                 try {
-                    Object message = in.readObject();
-                    messageHandler.accept(message);
-                } catch (IOException | ClassNotFoundException e) {
-                    e.printStackTrace();
+                    stats.received(codec.readFrame(in, sink));
+                } catch (IOException e) {
+                    if (!(e instanceof EOFException)) {
+                        e.printStackTrace();
+                    }
                     try {
                         socket.close(); // Close the socket on error to break the loop
                     } catch (IOException ioException) {
@@ -63,17 +575,76 @@ public class Wire {
 
 
     public boolean isEquivalentTo(Wire otherWire) {
-        // Check if both sockets are connected
-        if (this.socket == null || otherWire.socket == null) {
+        InetSocketAddress thisRemote = this.remoteAddress();
+        InetSocketAddress otherRemote = otherWire.remoteAddress();
+        // Check if both wires are connected
+        if (thisRemote == null || otherRemote == null) {
             return false;
         }
 
         // Compare remote IP addresses and ports
-        boolean isSameRemoteIP = this.socket.getInetAddress().equals(otherWire.socket.getInetAddress());
-        boolean isSameRemotePort = this.socket.getPort() == otherWire.socket.getPort();
+        boolean isSameRemoteIP = thisRemote.getAddress().equals(otherRemote.getAddress());
+        boolean isSameRemotePort = thisRemote.getPort() == otherRemote.getPort();
 
         return isSameRemoteIP && isSameRemotePort;
     }
 
+    InetSocketAddress remoteAddress() {
+        if (link != null) {
+            return link.remoteAddress();
+        }
+        if (socket == null) {
+            return null;
+        }
+        return (InetSocketAddress) socket.getRemoteSocketAddress();
+    }
+
+
+    // Batch sizes and how long the oldest message of each batch waited before it was written
+    public static class BatchStats {
+        private long batches;
+        private long messages;
+        private int maxBatchSize;
+        private long totalFlushLatencyNanos;
+        private long maxFlushLatencyNanos;
+
+        synchronized void record(int batchSize, long flushLatencyNanos) {
+            batches++;
+            messages += batchSize;
+            maxBatchSize = Math.max(maxBatchSize, batchSize);
+            totalFlushLatencyNanos += flushLatencyNanos;
+            maxFlushLatencyNanos = Math.max(maxFlushLatencyNanos, flushLatencyNanos);
+        }
+
+        public synchronized long getBatches() {
+            return batches;
+        }
+
+        public synchronized long getMessages() {
+            return messages;
+        }
+
+        public synchronized double getAverageBatchSize() {
+            return batches == 0 ? 0 : (double) messages / batches;
+        }
 
-}
\ No newline at end of file
+        public synchronized int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public synchronized double getAverageFlushLatencyMicros() {
+            return batches == 0 ? 0 : totalFlushLatencyNanos / 1000.0 / batches;
+        }
+
+        public synchronized double getMaxFlushLatencyMicros() {
+            return maxFlushLatencyNanos / 1000.0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("batches=%d messages=%d avgBatch=%.2f maxBatch=%d avgFlush=%.1fus maxFlush=%.1fus",
+                    batches, messages, getAverageBatchSize(), maxBatchSize,
+                    getAverageFlushLatencyMicros(), getMaxFlushLatencyMicros());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages and bytes through one connection, in both directions. Bytes count encoded frames as
+ * they hit the socket and stay zero for links that never encode, such as loopback.
+ */
+public class WireStats {
+
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    public void sent(int messages) {
+        messagesSent.addAndGet(messages);
+    }
+
+    public void sentBytes(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void received(int messages) {
+        messagesReceived.addAndGet(messages);
+    }
+
+    public void receivedBytes(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    // Wrap the raw socket stream, below any buffering, so every byte written is counted once
+    public OutputStream countSent(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSent.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSent.addAndGet(len);
+            }
+        };
+    }
+
+    public InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesReceived.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    bytesReceived.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent %d msgs %d B, received %d msgs %d B",
+                getMessagesSent(), getBytesSent(), getMessagesReceived(), getBytesReceived());
+    }
+}
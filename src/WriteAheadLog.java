@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of the inputs that drive a process, plus periodic snapshots of its state.
+ *
+ * The protocol state is a deterministic function of the broadcasts requested, the messages
+ * received and the flow control credits granted, in the order the protocol loop handled them, so
+ * only those kinds of record are logged, plus how far the delivery log got, which is output
+ * rather than state and tells recovery which delivered rounds to write again. Records are appended to memory-mapped segment files, which costs a copy into the page
+ * cache and survives a process crash. Segments are forced to disk when they are closed and
+ * before a snapshot replaces them.
+ *
+ * A snapshot captures the whole state after some record. Taking one starts a new segment and
+ * deletes the older ones, so recovery reads the snapshot and replays only what came after it.
+ *
+ * <pre>
+ * segment-&lt;n&gt;.wal : record* then zeros
+ * record          : int 1 + bodyLength, int crc32c(type, body), byte type, body
+ * snapshot.bin    : long firstSegment, int crc32c(state), int stateLength, state
+ * </pre>
+ *
+ * The length counts the type byte, so it is never zero, not even for an empty broadcast, and a
+ * zero always means unwritten space.
+ *
+ * Not thread-safe, the owning process appends from its protocol loop.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public static final byte SNAPSHOT = 0;  // body: the snapshot state, only ever handed to recovery
+    public static final byte BROADCAST = 1; // body: the payload bytes
+    public static final byte RECEIVED = 2;  // body: one binary codec frame
+    public static final byte CREDIT = 3;    // body: int processId, long delivered
+    public static final byte WRITTEN = 4;   // body: int rounds in the delivery log, long its length then
+
+    private static final int RECORD_HEADER = 4 + 4 + 1;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    /** Receives replayed records during recovery. */
+    public interface RecordHandler {
+        void record(byte type, ByteBuffer body) throws IOException;
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final CRC32C crc = new CRC32C();
+    private long segment;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long recordsSinceSnapshot;
+    private volatile long appendedRecords;
+
+    public WriteAheadLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Hands over the snapshot, if any, as a SNAPSHOT record and then every record after it in log
+     * order. Appending starts in a fresh segment after the last one found, so a torn tail is
+     * never written over.
+     *
+     * @return the number of records handed over, the snapshot not included
+     */
+    public long recover(RecordHandler handler) throws IOException {
+        long firstSegment = 0;
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+            firstSegment = snapshot.getLong();
+            int checksum = snapshot.getInt();
+            int length = snapshot.getInt();
+            ByteBuffer state = snapshot.slice(snapshot.position(), length);
+            if (checksum != checksum(SNAPSHOT, state.duplicate())) {
+                throw new IOException("Snapshot checksum mismatch in " + snapshotFile);
+            }
+            handler.record(SNAPSHOT, state);
+        }
+
+        long replayed = 0;
+        long lastSegment = firstSegment - 1;
+        for (long n : segments()) {
+            if (n < firstSegment) {
+                continue; // Left over from before the snapshot, deleting it was interrupted
+            }
+            replayed += replaySegment(n, handler);
+            lastSegment = n;
+        }
+        openSegment(Math.max(lastSegment + 1, firstSegment));
+        return replayed;
+    }
+
+    // The payload bytes as they are, the caller's buffer is left untouched
+    public void appendBroadcast(ByteBuffer payload) throws IOException {
+        append(BROADCAST, payload.duplicate());
+    }
+
+    public void appendReceived(byte[] frame) throws IOException {
+        append(RECEIVED, ByteBuffer.wrap(frame));
+    }
+
+    public void appendCredit(int processId, long delivered) throws IOException {
+        append(CREDIT, ByteBuffer.allocate(12).putInt(0, processId).putLong(4, delivered));
+    }
+
+    public void appendWritten(int rounds, long length) throws IOException {
+        append(WRITTEN, ByteBuffer.allocate(12).putInt(0, rounds).putLong(4, length));
+    }
+
+    /**
+     * Makes state the new recovery point: everything logged so far is covered by it, so the
+     * segments holding those records are deleted once the snapshot is safely on disk.
+     */
+    public void snapshot(ByteBuffer state) throws IOException {
+        long nextSegment = segment + 1;
+        openSegment(nextSegment);
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        int length = state.remaining();
+        ByteBuffer file = ByteBuffer.allocate(8 + 4 + 4 + length);
+        file.putLong(nextSegment).putInt(checksum(SNAPSHOT, state.duplicate())).putInt(length).put(state).flip();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (file.hasRemaining()) {
+                out.write(file);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        for (long n : segments()) {
+            if (n < nextSegment) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+        recordsSinceSnapshot = 0;
+    }
+
+    public long getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    // Push appended records from the page cache to disk
+    public void force() {
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void append(byte type, ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        if (mapped == null || mapped.remaining() < RECORD_HEADER + length) {
+            openSegment(segment + 1);
+            if (mapped.remaining() < RECORD_HEADER + length) {
+                throw new IOException("Record of " + length + " bytes does not fit in a log segment");
+            }
+        }
+        mapped.putInt(1 + length);
+        mapped.putInt(checksum(type, body.duplicate()));
+        mapped.put(type);
+        mapped.put(body);
+        recordsSinceSnapshot++;
+        appendedRecords++;
+    }
+
+    private long replaySegment(long n, RecordHandler handler) throws IOException {
+        long replayed = 0;
+        try (FileChannel in = FileChannel.open(segmentPath(n), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt(buffer.position()) - 1; // Without the type byte
+                if (length < 0 || length > buffer.remaining() - RECORD_HEADER) {
+                    break; // Unwritten space or a torn record, the log ends here
+                }
+                int checksum = buffer.getInt(buffer.position() + 4);
+                byte type = buffer.get(buffer.position() + 8);
+                ByteBuffer body = buffer.slice(buffer.position() + RECORD_HEADER, length);
+                if (checksum != checksum(type, body.duplicate())) {
+                    break;
+                }
+                handler.record(type, body);
+                buffer.position(buffer.position() + RECORD_HEADER + length);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private void openSegment(long n) throws IOException {
+        if (channel != null) {
+            mapped.force();
+            channel.close();
+        }
+        segment = n;
+        channel = FileChannel.open(segmentPath(n), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    private int checksum(byte type, ByteBuffer body) {
+        crc.reset();
+        crc.update(type);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private Path segmentPath(long n) {
+        return directory.resolve(String.format("segment-%016d.wal", n));
+    }
+
+    // Segment numbers present on disk, ascending
+    private List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring("segment-".length(), name.length() - ".wal".length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}